@@ -15,6 +15,7 @@ public class Main {
 
     public static void main(String[] args) {
         Blockchain blockchain = new Blockchain();
+        blockchain.init();
         Wallet wallet1 = new Wallet();
         Block genesisBlock = blockchain.createGenesisBlock(wallet1);
         blockchain.addBlock(genesisBlock);
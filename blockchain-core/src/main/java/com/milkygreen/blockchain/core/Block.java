@@ -1,7 +1,6 @@
 package com.milkygreen.blockchain.core;
 
-import com.milkygreen.blockchain.util.ByteUtil;
-import com.milkygreen.blockchain.util.CryptoUtil;
+import com.milkygreen.blockchain.util.BlockHasher;
 
 import java.io.Serializable;
 import java.util.List;
@@ -30,13 +29,13 @@ public class Block implements Serializable {
      * 挖出区块的人，由于贡献了自己的计算资源，会得到一定的代币奖励。
      *
      */
-    private String hash;
+    private Hash256 hash;
 
     /**
      * 上个区块的hash值。
      * 区块链类似一个区块组成的单链表，当前区块记录着上一个区块的hash，相当于指针。
      */
-    private String preHash;
+    private Hash256 preHash;
 
     /**
      * 区块的高度。
@@ -68,7 +67,7 @@ public class Block implements Serializable {
     /**
      * 代表区块中所有交易的hash摘要。
      */
-    private String merkleTree;
+    private Hash256 merkleTree;
 
     /**
      * 区块类型。
@@ -76,27 +75,57 @@ public class Block implements Serializable {
      */
     private int type;
 
+    /**
+     * 每个线程复用一个区块头hash计算器
+     */
+    private static final ThreadLocal<BlockHasher> HASHER = ThreadLocal.withInitial(BlockHasher::new);
+
     /**
      * 计算区块的hash值
+     * 即对固定格式的二进制区块头做两次SHA-256，见{@link BlockHasher}
      */
     public static String calculateHash(Block block){
-        String msg = block.getPreHash() + block.getTimestamp() + block.getNonce() + block.getMerkleTree();
-        return ByteUtil.bytesToHexString(CryptoUtil.doubleDigest(ByteUtil.stringToUtf8Bytes(msg)));
+        return calculateHashValue(block).toHex();
+    }
+
+    /**
+     * 计算区块的hash值，不转换成十六进制字符串
+     */
+    public static Hash256 calculateHashValue(Block block){
+        BlockHasher hasher = HASHER.get();
+        hasher.init(block);
+        return Hash256.of(hasher.hash(block.getNonce()));
     }
 
     public String getHash() {
-        return hash;
+        return Hash256.toHex(hash);
     }
 
     public void setHash(String hash) {
+        this.hash = Hash256.fromHex(hash);
+    }
+
+    public Hash256 getHashValue() {
+        return hash;
+    }
+
+    public void setHashValue(Hash256 hash) {
         this.hash = hash;
     }
 
     public String getPreHash() {
-        return preHash;
+        return Hash256.toHex(preHash);
     }
 
     public void setPreHash(String preHash) {
+        this.preHash = Hash256.fromHex(preHash);
+    }
+
+    public Hash256 getPreHashValue() {
+        return preHash;
+    }
+
+    public void setPreHashValue(Hash256 preHash) {
         this.preHash = preHash;
     }
 
@@ -133,10 +162,18 @@ public class Block implements Serializable {
     }
 
     public String getMerkleTree() {
-        return merkleTree;
+        return Hash256.toHex(merkleTree);
     }
 
     public void setMerkleTree(String merkleTree) {
+        this.merkleTree = Hash256.fromHex(merkleTree);
+    }
+
+    public Hash256 getMerkleTreeValue() {
+        return merkleTree;
+    }
+
+    public void setMerkleTreeValue(Hash256 merkleTree) {
         this.merkleTree = merkleTree;
     }
 
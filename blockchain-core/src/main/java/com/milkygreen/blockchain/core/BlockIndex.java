@@ -0,0 +1,94 @@
+package com.milkygreen.blockchain.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 区块树中的一个节点，对应一个已经保存到区块文件中的区块
+ * 只保存选择主链需要的信息：hash、父节点、高度和从创世区块到这个区块的累计工作量，区块内容按hash从区块文件中读取。
+ */
+public class BlockIndex {
+
+    private final Hash256 hash;
+
+    /**
+     * 父区块，创世区块为null
+     */
+    private final BlockIndex parent;
+
+    private final long height;
+
+    /**
+     * 从创世区块到这个区块（包括自己）的累计工作量
+     */
+    private final BigInteger chainWork;
+
+    /**
+     * 加入区块树的顺序，累计工作量相同时先到的优先
+     */
+    final long sequence;
+
+    /**
+     * 子区块，只在区块树的锁内访问
+     */
+    final List<BlockIndex> children = new ArrayList<>(1);
+
+    /**
+     * 连接时没有通过交易校验，这个区块和它的所有后代都不能进入主链
+     */
+    private volatile boolean failed;
+
+    BlockIndex(Hash256 hash, BlockIndex parent, long height, BigInteger chainWork, long sequence) {
+        this.hash = hash;
+        this.parent = parent;
+        this.height = height;
+        this.chainWork = chainWork;
+        this.sequence = sequence;
+    }
+
+    /**
+     * 向上找到指定高度的祖先
+     *
+     * @return 高度超出范围时返回null
+     */
+    public BlockIndex getAncestor(long height) {
+        if (height < 0 || height > this.height) {
+            return null;
+        }
+        BlockIndex index = this;
+        while (index.height > height) {
+            index = index.parent;
+        }
+        return index;
+    }
+
+    public Hash256 getHash() {
+        return hash;
+    }
+
+    public BlockIndex getParent() {
+        return parent;
+    }
+
+    public long getHeight() {
+        return height;
+    }
+
+    public BigInteger getChainWork() {
+        return chainWork;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    void setFailed(boolean failed) {
+        this.failed = failed;
+    }
+
+    @Override
+    public String toString() {
+        return height + ":" + hash;
+    }
+}
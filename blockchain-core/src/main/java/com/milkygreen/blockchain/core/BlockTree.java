@@ -0,0 +1,224 @@
+package com.milkygreen.blockchain.core;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * 区块树
+ * 以前只接受接在最新区块后面的区块，别的矿工同时挖出的区块、更重的分叉都会被丢掉，节点永远无法切换到别人的链上。
+ * 区块树记录所有已经保存的区块，每个区块一个{@link BlockIndex}，包括不在主链上的分叉，并算出每个区块的累计工作量，
+ * 累计工作量最大的、没有校验失败的区块就是应该成为主链最新区块的区块，它总在候选集合的第一个，不需要遍历整棵树。
+ * 父区块还没有收到的区块暂时放在孤块池中，父区块到达之后再取出来处理，孤块池有数量上限，满了之后丢掉最早的孤块。
+ * 所有方法都是线程安全的。
+ */
+public class BlockTree {
+
+    /**
+     * 孤块池的数量上限
+     */
+    public static final int MAX_ORPHANS = 100;
+
+    private final Map<Hash256, BlockIndex> blocks = new HashMap<>();
+
+    /**
+     * 孤块，按到达的顺序排列
+     */
+    private final LinkedHashMap<Hash256, Block> orphans = new LinkedHashMap<>();
+
+    /**
+     * 当前主链的最新区块，还没有区块时为null
+     */
+    private BlockIndex tip;
+
+    /**
+     * 可能成为主链最新区块的区块：没有校验失败，也没有未失败的子区块
+     * 按累计工作量从大到小、到达顺序从先到后排列，第一个就是累计工作量最大的区块。
+     */
+    private final TreeSet<BlockIndex> candidates = new TreeSet<>(Comparator
+            .comparing(BlockIndex::getChainWork, Comparator.reverseOrder())
+            .thenComparingLong(index -> index.sequence));
+
+    private long sequence;
+
+    /**
+     * 加入一个已经保存的区块
+     *
+     * @return 区块对应的节点
+     * @throws IllegalArgumentException 父区块不在树中、高度不是父区块加一，或者已经有了创世区块又加入一个
+     */
+    public synchronized BlockIndex add(Block block) {
+        Hash256 hash = block.getHashValue();
+        BlockIndex index = blocks.get(hash);
+        if (index != null) {
+            return index;
+        }
+        Hash256 preHash = block.getPreHashValue();
+        BlockIndex parent = null;
+        if (preHash == null) {
+            if (!blocks.isEmpty()) {
+                throw new IllegalArgumentException("已经有创世区块了：" + hash);
+            }
+            if (block.getHeight() != 0) {
+                throw new IllegalArgumentException("创世区块的高度必须是0：" + hash);
+            }
+        } else {
+            parent = blocks.get(preHash);
+            if (parent == null) {
+                throw new IllegalArgumentException("父区块不在区块树中：" + hash);
+            }
+            if (block.getHeight() != parent.getHeight() + 1) {
+                throw new IllegalArgumentException("区块高度不是父区块高度加一：" + hash);
+            }
+        }
+        BigInteger chainWork = parent == null ? Miner.BLOCK_WORK : parent.getChainWork().add(Miner.BLOCK_WORK);
+        index = new BlockIndex(hash, parent, block.getHeight(), chainWork, sequence++);
+        blocks.put(hash, index);
+        if (parent != null) {
+            parent.children.add(index);
+            if (parent.isFailed()) {
+                index.setFailed(true);
+            } else {
+                // 子区块的工作量总是更大，父区块不可能再成为最新区块
+                candidates.remove(parent);
+            }
+        }
+        if (!index.isFailed()) {
+            candidates.add(index);
+        }
+        return index;
+    }
+
+    public synchronized BlockIndex get(Hash256 hash) {
+        return hash == null ? null : blocks.get(hash);
+    }
+
+    public synchronized boolean contains(Hash256 hash) {
+        return blocks.containsKey(hash);
+    }
+
+    /**
+     * 累计工作量最大、没有校验失败的区块，工作量相同时先到的优先
+     *
+     * @return 没有区块时返回null
+     */
+    public synchronized BlockIndex getBest() {
+        return candidates.isEmpty() ? null : candidates.first();
+    }
+
+    public synchronized BlockIndex getTip() {
+        return tip;
+    }
+
+    public synchronized void setTip(BlockIndex tip) {
+        this.tip = tip;
+    }
+
+    /**
+     * 标记一个区块校验失败，沿着子区块把它的所有后代也一并标记，并从候选集合中删掉
+     * 代价与后代的数量成正比，与整棵树的大小无关。父区块的子区块都失败之后，父区块重新成为候选。
+     */
+    public synchronized void markFailed(BlockIndex failed) {
+        if (failed.isFailed()) {
+            return;
+        }
+        Deque<BlockIndex> pending = new ArrayDeque<>();
+        pending.add(failed);
+        while (!pending.isEmpty()) {
+            BlockIndex index = pending.poll();
+            if (index.isFailed()) {
+                continue;
+            }
+            index.setFailed(true);
+            candidates.remove(index);
+            pending.addAll(index.children);
+        }
+        BlockIndex parent = failed.getParent();
+        if (parent != null && !parent.isFailed()) {
+            for (BlockIndex child : parent.children) {
+                if (!child.isFailed()) {
+                    return;
+                }
+            }
+            candidates.add(parent);
+        }
+    }
+
+    /**
+     * 放入一个孤块，孤块池满了之后丢掉最早的
+     *
+     * @return 是否放入，已经在孤块池中时返回false
+     */
+    public synchronized boolean addOrphan(Block block) {
+        if (orphans.containsKey(block.getHashValue())) {
+            return false;
+        }
+        orphans.put(block.getHashValue(), block);
+        if (orphans.size() > MAX_ORPHANS) {
+            Iterator<Hash256> eldest = orphans.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        return true;
+    }
+
+    public synchronized boolean isOrphan(Hash256 hash) {
+        return orphans.containsKey(hash);
+    }
+
+    /**
+     * 取出父区块是parentHash的孤块
+     */
+    public synchronized List<Block> takeOrphans(Hash256 parentHash) {
+        List<Block> children = null;
+        for (Iterator<Block> iterator = orphans.values().iterator(); iterator.hasNext(); ) {
+            Block block = iterator.next();
+            if (parentHash.equals(block.getPreHashValue())) {
+                if (children == null) {
+                    children = new ArrayList<>();
+                }
+                children.add(block);
+                iterator.remove();
+            }
+        }
+        return children == null ? Collections.emptyList() : children;
+    }
+
+    public synchronized int size() {
+        return blocks.size();
+    }
+
+    public synchronized int orphanCount() {
+        return orphans.size();
+    }
+
+    /**
+     * 两个区块最近的公共祖先，代价与两者到公共祖先的距离成正比
+     *
+     * @return 不在同一棵树上或者有一个为null时返回null
+     */
+    public static BlockIndex findFork(BlockIndex a, BlockIndex b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        if (a.getHeight() > b.getHeight()) {
+            a = a.getAncestor(b.getHeight());
+        } else {
+            b = b.getAncestor(a.getHeight());
+        }
+        while (a != b) {
+            a = a.getParent();
+            b = b.getParent();
+        }
+        return a;
+    }
+}
@@ -1,14 +1,26 @@
 package com.milkygreen.blockchain.core;
 
+import com.milkygreen.blockchain.db.AddressIndex;
 import com.milkygreen.blockchain.db.DBUtil;
-import com.milkygreen.blockchain.util.ByteUtil;
+import com.milkygreen.blockchain.db.UTXOEntry;
+import com.milkygreen.blockchain.util.AddressCache;
+import com.milkygreen.blockchain.util.BlockHasher;
 import com.milkygreen.blockchain.util.CryptoUtil;
+import com.milkygreen.blockchain.util.SignatureCache;
 import com.milkygreen.blockchain.util.TransactionUtil;
 import com.milkygreen.blockchain.wallet.Account;
 import com.milkygreen.blockchain.wallet.Wallet;
 
-import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * 区块链
@@ -20,130 +32,425 @@ import java.util.*;
 public class Blockchain {
 
     /**
-     * 新增一个区块到区块链尾部
+     * 最新区块变化的监听器，新区块入库之后会被通知
+     */
+    private static final List<Consumer<Block>> TIP_LISTENERS = new CopyOnWriteArrayList<>();
+
+    /**
+     * 校验区块时并行验证签名的线程数量，设为1则串行验证
+     */
+    public static int signatureVerifyThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * 每个并行任务至少验证这么多个签名，签名太少时拆分任务得不偿失
+     */
+    private static final int MIN_INPUTS_PER_TASK = 16;
+
+    /**
+     * 签名验证线程池
+     */
+    private static ExecutorService verifyExecutor;
+
+    private static int verifyExecutorThreads;
+
+    /**
+     * 注册最新区块变化的监听器
+     * 监听器在新增区块的线程中被调用，不应该执行耗时操作
+     *
+     * @param listener 参数为新的最新区块
+     */
+    public static void addTipListener(Consumer<Block> listener) {
+        TIP_LISTENERS.add(listener);
+    }
+
+    public static void removeTipListener(Consumer<Block> listener) {
+        TIP_LISTENERS.remove(listener);
+    }
+
+    /**
+     * 启动时调用一次，切换到区块文件中累计工作量最大的链上
+     * 区块文件中可能有比链状态更新的区块（进程崩溃时UTXO缓存还没写回），或者工作量更大的分叉。
+     * 不调用的话，这些区块要等到下一次{@link #addBlock(Block)}时才会连接。
+     */
+    public void init() {
+        synchronized (Blockchain.class) {
+            activateBestChain();
+        }
+    }
+
+    /**
+     * 新增一个区块
      * 一个区块需要通过一系列校验才能被接受。如:区块本身的hash值合法、区块上的交易数据结构正确、区块不包含重复的交易等等
+     * 区块不一定接在最新区块后面：接在别的区块后面的区块保存为分叉，分叉的累计工作量超过主链时切换过去；
+     * 父区块还没有收到的区块放进孤块池，等父区块到达之后再处理。
      *
      * @param block 区块
      */
     public void addBlock(Block block) {
-        // 判断接收到的区块是否是本地最新高度加一
-        Block preBlock = getTailBlock();
-        if(preBlock != null){
-            if (!preBlock.getHash().equals(block.getPreHash()) || preBlock.getHeight() + 1 != block.getHeight()) {
-                System.out.println("接收到非法的区块！");
+        Block tip;
+        // 校验与入库必须是原子的，否则两个同时到达的区块可能都接在同一个最新区块后面
+        synchronized (Blockchain.class) {
+            BlockIndex oldTip = DBUtil.blockTree.getTip();
+            if (!acceptBlock(block)) {
+                return;
+            }
+            activateBestChain();
+            if (DBUtil.blockTree.getTip() == oldTip) {
+                System.out.println("区块保存在分叉上，主链没有变化！");
                 return;
             }
+            tip = DBUtil.getTailBlock();
+        }
+        System.out.println("新区块已接受！");
+        for (Consumer<Block> listener : TIP_LISTENERS) {
+            listener.accept(tip);
+        }
+    }
+
+    /**
+     * 校验区块本身并保存到区块文件和区块树中，之后等待它的孤块也一并保存
+     * 这里只做不依赖UTXO的校验，交易是否合法在区块连接到主链上时才校验。
+     *
+     * @return 区块是否被保存
+     */
+    private boolean acceptBlock(Block block) {
+        Hash256 hash = block.getHashValue();
+        if (hash == null || DBUtil.blockTree.contains(hash) || DBUtil.blockTree.isOrphan(hash)) {
+            System.out.println("区块已经存在！");
+            return false;
+        }
+        if (!checkBlockHeader(block)) {
+            return false;
+        }
+        Hash256 preHash = block.getPreHashValue();
+        if (preHash == null) {
+            if (DBUtil.blockTree.size() > 0 || block.getHeight() != 0) {
+                System.out.println("接收到非法的区块！");
+                return false;
+            }
+        } else {
+            BlockIndex parent = DBUtil.blockTree.get(preHash);
+            if (parent == null) {
+                DBUtil.blockTree.addOrphan(block);
+                System.out.println("父区块还没有收到，区块放入孤块池！");
+                return false;
+            }
+            if (parent.getHeight() + 1 != block.getHeight()) {
+                System.out.println("接收到非法的区块！");
+                return false;
+            }
         }
+        storeBlock(block);
 
-        // 校验区块hash
-        String hash = Block.calculateHash(block);
-        if (!hash.equals(block.getHash())) {
+        // 以刚保存的区块为父区块的孤块现在可以保存了，它们的孤块也一样
+        Deque<Block> pending = new ArrayDeque<>(DBUtil.blockTree.takeOrphans(hash));
+        while (!pending.isEmpty()) {
+            Block orphan = pending.poll();
+            BlockIndex parent = DBUtil.blockTree.get(orphan.getPreHashValue());
+            if (parent.getHeight() + 1 != orphan.getHeight()) {
+                continue;
+            }
+            storeBlock(orphan);
+            pending.addAll(DBUtil.blockTree.takeOrphans(orphan.getHashValue()));
+        }
+        return true;
+    }
+
+    /**
+     * 校验区块的hash、难度和merkleTree
+     */
+    private boolean checkBlockHeader(Block block) {
+        Hash256 hash = Block.calculateHashValue(block);
+        if (!hash.equals(block.getHashValue())) {
             System.out.println("区块的hash值不正确！");
-            return;
+            return false;
         }
-        if (new BigInteger(Miner.difficulty, 16).compareTo(new BigInteger(block.getHash(), 16)) <= 0) {
+        if (!Miner.meetsDifficulty(hash.toBytes())) {
             System.out.println("区块的hash值不符合difficulty要求！");
-            return;
+            return false;
         }
-        List<Transaction> transactions = block.getTransactions();
-        String merkleTree = TransactionUtil.genMerkleTree(transactions);
-        if (!merkleTree.equals(block.getMerkleTree())) {
+        Hash256 merkleTree = TransactionUtil.genMerkleTreeValue(block.getTransactions());
+        if (!merkleTree.equals(block.getMerkleTreeValue())) {
             System.out.println("区块的merkleTree值不正确！");
-            return;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 区块写入区块文件，并加入区块树
+     */
+    private void storeBlock(Block block) {
+        DBUtil.blockStore.append(block);
+        DBUtil.blockTree.add(block);
+    }
+
+    /**
+     * 切换到累计工作量最大的链上
+     * 先从主链最新区块断开到分叉点，再从分叉点依次连接新链上的区块，代价与分叉的深度成正比，与整条链的长度无关。
+     * 新链上的区块校验不通过时标记为失败，重新选择工作量最大的链，必要时切换回原来的链。
+     * 磁盘写入失败之类的异常与区块本身无关，不标记失败，停在已经连接好的区块上，下次收到区块时再试。
+     * 断开过区块时，交易池中花费了已经不存在的输出的交易被删除；被断开的交易如果没有进入新的主链，放回交易池。
+     */
+    private void activateBestChain() {
+        BlockTree tree = DBUtil.blockTree;
+        List<Transaction> disconnected = new ArrayList<>();
+        boolean reorganized = false;
+        try {
+            while (true) {
+                BlockIndex best = tree.getBest();
+                BlockIndex tip = tree.getTip();
+                if (best == null || (tip != null && best.getChainWork().compareTo(tip.getChainWork()) <= 0)) {
+                    break;
+                }
+                BlockIndex fork = BlockTree.findFork(tip, best);
+                while (tree.getTip() != fork) {
+                    disconnectTip(disconnected);
+                    reorganized = true;
+                }
+                List<BlockIndex> path = new ArrayList<>();
+                for (BlockIndex index = best; index != fork; index = index.getParent()) {
+                    path.add(index);
+                }
+                Collections.reverse(path);
+                for (BlockIndex index : path) {
+                    if (!connectTip(index)) {
+                        System.out.println("区块校验失败，不能进入主链：" + index);
+                        tree.markFailed(index);
+                        DBUtil.blockIndexStore.setFailed(index.getHash());
+                        break;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("切换主链失败，稍后重试：" + e);
         }
-        // 校验每笔交易是否合法、有重复花费
-        if (!checkTransactions(transactions)) {
-            return;
+        if (reorganized) {
+            int removed = DBUtil.unConfirmTransactionPool.removeUnspendable();
+            if (removed > 0) {
+                System.out.println("主链切换之后，从交易池中删除了" + removed + "笔无法确认的交易！");
+            }
+        }
+        // 按原来在链上的顺序放回，后面的交易可能花费前面交易的输出
+        Collections.reverse(disconnected);
+        for (Transaction transaction : disconnected) {
+            if (!DBUtil.transactionIndex.contains(transaction.getHashValue())) {
+                DBUtil.unConfirmTransactionPool.add(transaction);
+            }
         }
+    }
 
-        // 校验通过之后，数据存入本地
-        this.saveBlock(block);
-        System.out.println("新区块已接受！");
+    /**
+     * 校验区块中的交易，通过之后连接到主链末尾
+     *
+     * @return 是否连接成功
+     */
+    private boolean connectTip(BlockIndex index) {
+        Block block = DBUtil.blockStore.getBlock(index.getHash());
+        if (block == null) {
+            throw new IllegalStateException("区块文件中没有这个区块：" + index);
+        }
+        if (!checkTransactions(block.getTransactions())) {
+            // 本地矿工打包的区块也会走到这里，不合法的交易留在交易池中的话，矿工会一直打包出同样的区块
+            int removed = DBUtil.unConfirmTransactionPool.removeInvalid(block.getTransactions());
+            if (removed > 0) {
+                System.out.println("从交易池中删除了" + removed + "笔不合法的交易！");
+            }
+            return false;
+        }
+        this.saveBlock(block, index);
+        return true;
+    }
+
+    /**
+     * 断开主链的最新区块，用撤销数据恢复它花掉的输出
+     * 与{@link #saveBlock(Block, BlockIndex)}一样先写索引，再修改内存，抛出异常时区块仍在主链上。
+     *
+     * @param disconnected 收集被断开的普通交易，按在链上的逆序
+     */
+    private void disconnectTip(List<Transaction> disconnected) {
+        BlockIndex tip = DBUtil.blockTree.getTip();
+        Block block = DBUtil.blockStore.getBlock(tip.getHash());
+        List<UTXOEntry> spent = DBUtil.undoStore.get(tip.getHash());
+        if (spent == null) {
+            throw new IllegalStateException("缺少区块的撤销数据：" + tip);
+        }
+        DBUtil.transactionIndex.disconnectBlock(block);
+        if (DBUtil.addressIndex != null) {
+            try {
+                DBUtil.addressIndex.disconnectBlock(block);
+            } catch (RuntimeException e) {
+                rollbackIndex(() -> DBUtil.transactionIndex.connectBlock(block));
+                throw e;
+            }
+        }
+        DBUtil.coinsCache.disconnectBlock(block, spent);
+        List<Transaction> transactions = block.getTransactions();
+        for (int i = transactions.size() - 1; i >= 0; i--) {
+            Transaction transaction = transactions.get(i);
+            for (TransactionOutput output : transaction.getOutputs()) {
+                DBUtil.UTXO.remove(output);
+            }
+            if (transaction.getType() == Transaction.TRANSACTION_TYPE_NORMAL) {
+                disconnected.add(transaction);
+            }
+        }
+        for (UTXOEntry entry : spent) {
+            DBUtil.UTXO.add(entry.getOutput(), entry.getHeight());
+        }
+        // 先退回高度，别的线程通过高度查到的最新区块一定还在主链上
+        DBUtil.blockchainHeight = tip.getHeight() - 1;
+        DBUtil.blockStore.removeMainChainBlock(tip.getHeight());
+        DBUtil.blockTree.setTip(tip.getParent());
+        flushCoins();
+        System.out.println("断开区块，高度：" + tip.getHeight());
     }
 
     /**
      * 将区块保存到本地区块链上
+     * 连接要么完整生效，要么什么都不改：先做所有可能失败的磁盘写入（撤销数据、交易索引、地址索引），
+     * 全部成功之后才修改UTXO缓存、交易池、钱包的UTXO和主链，这一步只改内存，区块已经校验过，不会失败。
+     * 磁盘写入失败时已经写入的索引被撤销，区块没有连接，可以重试；撤销也失败时索引领先于链状态，下次启动时由DBUtil对齐。
      *
      * @param block Block
-     * @return
+     * @param index 区块在区块树中的节点
      */
-    private void saveBlock(Block block) {
-        // 保存区块高度
-        DBUtil.blockchainHeight = block.getHeight();
-        // 保存hash-区块
-        DBUtil.hashBlockDB.put(block.getHash(), block);
-        DBUtil.HeightHashBlockDB.put(block.getHeight(), block.getHash());
+    private void saveBlock(Block block, BlockIndex index) {
+        // 撤销数据：被花掉的输出和它们所在的高度，必须在修改UTXO之前读取
+        List<UTXOEntry> spent = new ArrayList<>();
+        for (Transaction transaction : block.getTransactions()) {
+            if (transaction.getType() == Transaction.TRANSACTION_TYPE_NORMAL) {
+                for (TransactionInput input : transaction.getInputs()) {
+                    spent.add(DBUtil.coinsCache.getEntry(OutPoint.of(input.getUnspentOutput())));
+                }
+            }
+        }
+        DBUtil.undoStore.put(block.getHashValue(), spent);
+        // 交易本身已经在区块文件中，索引只记录它的位置
+        DBUtil.transactionIndex.connectBlock(block);
+        if (DBUtil.addressIndex != null) {
+            try {
+                DBUtil.addressIndex.connectBlock(block);
+            } catch (RuntimeException e) {
+                rollbackIndex(() -> DBUtil.transactionIndex.disconnectBlock(block));
+                throw e;
+            }
+        }
+        // 区块对UTXO的修改先记在缓存中，攒够一批再写入链状态数据库
+        // 必须在下面删除冲突交易之前，交易池放入交易时依赖这个顺序发现并发的冲突
+        DBUtil.coinsCache.connectBlock(block);
         // 保存交易数据
         List<Transaction> transactions = block.getTransactions();
         for (Transaction transaction : transactions) {
-            // 从未确认交易池中删除
-            Map<String, Transaction> unConfirmTransactionPool = DBUtil.unConfirmTransactionPool;
-            unConfirmTransactionPool.remove(transaction.getHash());
-
-            // 保存交易本身
-            DBUtil.hashTransactionDB.put(transaction.getHash(), transaction);
+            // 从未确认交易池中删除，花费了同一个输出的其他交易也一并删除
+            DBUtil.unConfirmTransactionPool.remove(transaction.getHashValue());
+            DBUtil.unConfirmTransactionPool.removeConflicts(transaction);
 
             if(transaction.getType() == Transaction.TRANSACTION_TYPE_NORMAL){
                 List<TransactionInput> inputs = transaction.getInputs();
                 for (TransactionInput transactionInput : inputs) {
-                    // 将input中的UTXO，从付款人账户中删除
-                    TransactionOutput unspentOutput = transactionInput.getUnspentOutput();
-                    Set<TransactionOutput> transactionOutputs = DBUtil.UTXO.get(unspentOutput.getAccount());
-                    transactionOutputs.remove(unspentOutput);
-                    DBUtil.UTXO.put(unspentOutput.getAccount(), transactionOutputs);
+                    // 将input中的UTXO，从付款人账户中删除，钱包的地址索引只关心钱包自己的地址
+                    DBUtil.UTXO.remove(transactionInput.getUnspentOutput());
                 }
             }
 
             // 将新的output放入到相应收款人的账户中
             List<TransactionOutput> outputs = transaction.getOutputs();
             for (TransactionOutput transactionOutput : outputs) {
-                synchronized (DBUtil.UTXO){
-                    Set<TransactionOutput> transactionOutputs = DBUtil.UTXO.getOrDefault(transactionOutput.getAccount(),new HashSet<>());
-                    transactionOutputs.add(transactionOutput);
-                    DBUtil.UTXO.put(transactionOutput.getAccount(), transactionOutputs);
-                }
+                DBUtil.UTXO.add(transactionOutput, block.getHeight());
             }
         }
+        DBUtil.blockStore.setMainChainBlock(block.getHeight(), block.getHashValue());
+        DBUtil.blockTree.setTip(index);
+        // 最后才更新区块高度，这样别的线程通过高度查到的最新区块一定是完整的
+        DBUtil.blockchainHeight = block.getHeight();
+        flushCoins();
         System.out.println("区块入库成功！");
     }
 
+    /**
+     * 撤销已经写入的索引，撤销失败时只打印，索引在下次启动时对齐
+     */
+    private static void rollbackIndex(Runnable rollback) {
+        try {
+            rollback.run();
+        } catch (RuntimeException e) {
+            System.out.println("撤销索引失败，下次启动时重新对齐：" + e);
+        }
+    }
+
+    /**
+     * UTXO缓存超过内存预算时写回链状态
+     * 区块已经连接好了，写回失败不影响它，缓存保留着所有修改，下次连接区块时再写回。
+     */
+    private static void flushCoins() {
+        try {
+            DBUtil.coinsCache.flushIfFull();
+        } catch (RuntimeException e) {
+            System.out.println("UTXO缓存写回失败，稍后重试：" + e);
+        }
+    }
+
     /**
      * 校验每笔交易的正确性：input是否正确、签名是否正确、是否有重复的未花费输出
+     * 分两步进行：先串行做hash、UTXO是否存在、重复输入、金额这些代价很小的检查，
+     * 全部通过之后，再把整个区块所有input的签名交给线程池并行验证。
      *
      * @param transactions
      * @return
      */
     private boolean checkTransactions(List<Transaction> transactions) {
-        Set<TransactionOutput> outputSet = new HashSet<>();
+        Set<OutPoint> outPointSet = new HashSet<>();
+        Set<OutPoint> newOutPoints = new HashSet<>();
+        List<TransactionInput> signedInputs = new ArrayList<>();
 
         for (Transaction transaction : transactions) {
 
-            String hash = TransactionUtil.calculateHash(transaction);
-            if (!hash.equals(transaction.getHash())) {
+            Hash256 hash = TransactionUtil.calculateHashValue(transaction);
+            if (!hash.equals(transaction.getHashValue())) {
                 System.out.println("交易的hash值非法！");
                 return false;
             }
+            // 区块文件只保存收款地址的公钥哈希，不合法的地址无法保存
+            if (transaction.getPayee() != null && AddressCache.publicKeyHash(transaction.getPayee()) == null) {
+                System.out.println("交易的收款地址不合法！");
+                return false;
+            }
 
             List<TransactionInput> inputs = transaction.getInputs();
             long inputAmount = 0;
             // 如果是普通交易，需要验证Input的来源。
             if(transaction.getType() == Transaction.TRANSACTION_TYPE_NORMAL ){
                 for (TransactionInput input : inputs) {
-                    if (!checkTransactionInput(input)) {
+                    if (!checkUnspentOutput(input)) {
                         return false;
                     }
                     TransactionOutput unspentOutput = input.getUnspentOutput();
-                    if (outputSet.contains(unspentOutput)) {
+                    if (!outPointSet.add(OutPoint.of(unspentOutput))) {
                         System.out.println("交易中含有重复的未花费输出！");
                         return false;
                     }
-                    outputSet.add(unspentOutput);
                     inputAmount += unspentOutput.getAmount();
+                    signedInputs.add(input);
                 }
             }
             List<TransactionOutput> outputs = transaction.getOutputs();
-            int outputAmount = 0;
+            long outputAmount = 0;
             for (TransactionOutput output : outputs) {
+                if (AddressCache.publicKeyHash(output.getAccount()) == null) {
+                    System.out.println("交易输出的收款地址不合法！");
+                    return false;
+                }
+                if (!hash.equals(output.getTransactionHashValue())) {
+                    System.out.println("交易输出不属于这笔交易！");
+                    return false;
+                }
+                // 新输出不能与区块中的其他输出或者已有的未花费输出重复，否则连接区块时UTXO无法更新
+                OutPoint outPoint = OutPoint.of(output);
+                if (!newOutPoints.add(outPoint) || DBUtil.coinsCache.contains(outPoint)) {
+                    System.out.println("交易输出已经存在！");
+                    return false;
+                }
                 outputAmount += output.getAmount();
             }
             if(transaction.getType() == Transaction.TRANSACTION_TYPE_NORMAL){
@@ -153,9 +460,107 @@ public class Blockchain {
                 }
             }
         }
+        if (!checkSignatures(signedInputs)) {
+            System.out.println("交易的input签名未校验通过！");
+            return false;
+        }
         return true;
     }
 
+    /**
+     * 并行验证一批input的签名
+     * input被平均分成最多signatureVerifyThreads份，每份在线程池中验证：ECDSA签名逐个验证，Schnorr签名合在一起批量验证。
+     * 任意一个签名验证失败之后，其他任务在验证下一个签名之前就会停下来。
+     *
+     * @param inputs 待验证的input
+     * @return 是否全部验证通过
+     */
+    private boolean checkSignatures(List<TransactionInput> inputs) {
+        AtomicBoolean failed = new AtomicBoolean();
+        int parallelism = Math.min(signatureVerifyThreads, inputs.size() / MIN_INPUTS_PER_TASK);
+        if (parallelism <= 1) {
+            checkSignatures(inputs, failed);
+            return !failed.get();
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(parallelism);
+        int chunk = (inputs.size() + parallelism - 1) / parallelism;
+        for (int from = 0; from < inputs.size(); from += chunk) {
+            List<TransactionInput> part = inputs.subList(from, Math.min(from + chunk, inputs.size()));
+            tasks.add(() -> {
+                checkSignatures(part, failed);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : verifyExecutor().invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return !failed.get();
+    }
+
+    /**
+     * 验证一份input的签名，失败时设置failed标记，其他任务已经失败时提前返回
+     */
+    private void checkSignatures(List<TransactionInput> part, AtomicBoolean failed) {
+        List<TransactionInput> schnorrInputs = new ArrayList<>();
+        for (TransactionInput input : part) {
+            if (failed.get()) {
+                return;
+            }
+            if (input.getSignatureType() == TransactionInput.SIGNATURE_TYPE_SCHNORR) {
+                schnorrInputs.add(input);
+            } else if (!checkSignature(input)) {
+                failed.set(true);
+                return;
+            }
+        }
+        if (!failed.get() && !TransactionUtil.validateSignatures(schnorrInputs)) {
+            failed.set(true);
+        }
+    }
+
+    /**
+     * 签名验证线程池，线程数量跟随signatureVerifyThreads变化
+     */
+    private static synchronized ExecutorService verifyExecutor() {
+        int threads = Math.max(1, signatureVerifyThreads);
+        if (verifyExecutor == null || verifyExecutorThreads != threads) {
+            if (verifyExecutor != null) {
+                verifyExecutor.shutdown();
+            }
+            AtomicInteger threadIndex = new AtomicInteger();
+            verifyExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "signature-verifier-" + threadIndex.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            verifyExecutorThreads = threads;
+        }
+        return verifyExecutor;
+    }
+
+    /**
+     * 校验一笔还没有被打包的交易，例如钱包发出交易之前的预检查、交易进入交易池之前的检查。
+     * 校验规则与区块入库时相同，验证通过的签名会进入{@link SignatureCache}，
+     * 之后包含这笔交易的区块入库时就不用再验证这些签名了。
+     *
+     * @param transaction 未确认交易
+     * @return 是否合法
+     */
+    public boolean checkPendingTransaction(Transaction transaction) {
+        if (transaction.getType() != Transaction.TRANSACTION_TYPE_NORMAL) {
+            System.out.println("只有普通交易可以进入交易池！");
+            return false;
+        }
+        return checkTransactions(Collections.singletonList(transaction));
+    }
+
     /**
      * 校验交易的TransactionInput是否合法。
      * 首先校验所使用的未花费输出是否存在
@@ -165,19 +570,33 @@ public class Blockchain {
      * @return
      */
     public boolean checkTransactionInput(TransactionInput input) {
-        TransactionOutput unspentOutput = input.getUnspentOutput();
-        Set<TransactionOutput> transactionOutputs = DBUtil.UTXO.get(unspentOutput.getAccount());
-        if (transactionOutputs.contains(unspentOutput)) {
-            String signature = input.getSignature();
-            if (!TransactionUtil.validateSignature(input.getPublicKey(), signature, input)) {
-                System.out.println("交易的input签名未校验通过！");
-                return false;
-            }
-            return true;
-        } else {
+        if (!checkUnspentOutput(input)) {
+            return false;
+        }
+        if (!checkSignature(input)) {
+            System.out.println("交易的input签名未校验通过！");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 校验input所使用的未花费输出是否存在
+     */
+    private boolean checkUnspentOutput(TransactionInput input) {
+        if (!DBUtil.coinsCache.contains(input.getUnspentOutput())) {
             System.out.println("试图花费不存在的UTXO！");
             return false;
         }
+        return true;
+    }
+
+    /**
+     * 校验input的签名，即是否是UTXO持有者发起的交易
+     * 已经在{@link SignatureCache}中的签名直接通过
+     */
+    private boolean checkSignature(TransactionInput input) {
+        return TransactionUtil.validateSignature(input.getPublicKey(), input.getSignature(), input);
     }
 
     /**
@@ -192,22 +611,22 @@ public class Blockchain {
         Account account = CryptoUtil.randomAccount();
         Transaction transaction = wallet.genIncentives(account);
 
-        String merkleTree = TransactionUtil.genMerkleTree(Collections.singletonList(transaction));
+        Hash256 merkleTree = TransactionUtil.genMerkleTreeValue(Collections.singletonList(transaction));
         Block block = new Block();
-        block.setMerkleTree(merkleTree);
+        block.setMerkleTreeValue(merkleTree);
         block.setHeight(0);
         block.setTimestamp(System.currentTimeMillis());
         block.setTransactions(Collections.singletonList(transaction));
         block.setType(Block.GENESIS_BLOCK);
-        block.setNonce(ByteUtil.bytesToUint64(ByteUtil.random32Bytes()));
-        String hash = Block.calculateHash(block);
-        block.setHash(hash);
         // 创世区块依然需要符合hash难度要求（在动态调整难度的区块链系统中，初始的时候难度应该是很小的）
-        while(new BigInteger(Miner.difficulty,16).compareTo(new BigInteger(block.getHash(),16)) <= 0){
-            block.setNonce(ByteUtil.bytesToUint64(ByteUtil.random32Bytes()));
-            hash = Block.calculateHash(block);
-            block.setHash(hash);
+        BlockHasher hasher = new BlockHasher();
+        hasher.init(block);
+        long nonce = 0;
+        while (!Miner.meetsDifficulty(hasher.hash(nonce))) {
+            nonce++;
         }
+        block.setNonce(nonce);
+        block.setHashValue(Block.calculateHashValue(block));
         wallet.addAccount(account);
         System.out.println("创世区块构建成功！");
         return block;
@@ -220,7 +639,7 @@ public class Blockchain {
      * @return 区块
      */
     public Block getBlockByHash(String hash) {
-        return DBUtil.hashBlockDB.get(hash);
+        return DBUtil.blockStore.getBlock(Hash256.fromHex(hash));
     }
 
     /**
@@ -230,7 +649,18 @@ public class Blockchain {
      * @return 区块
      */
     public Block getBlockByHeight(long height) {
-        return DBUtil.hashBlockDB.get(DBUtil.HeightHashBlockDB.get(height));
+        return DBUtil.blockStore.getBlock(height);
+    }
+
+    /**
+     * 查询主链上一段高度的区块，用于区块浏览器分页展示
+     *
+     * @param from 起始高度（包含）
+     * @param to   结束高度（包含）
+     * @return 按高度顺序排列的区块，超出最新高度的部分不返回
+     */
+    public List<Block> getBlocksByHeight(long from, long to) {
+        return DBUtil.blockStore.getBlocks(from, to);
     }
 
     /**
@@ -240,7 +670,23 @@ public class Blockchain {
      * @return 交易
      */
     public Transaction getTransactionByHash(String hash) {
-        return DBUtil.hashTransactionDB.get(hash);
+        return DBUtil.transactionIndex.getTransaction(Hash256.fromHex(hash));
+    }
+
+    /**
+     * 分页查询地址参与过的交易，从新到旧，需要开启地址索引
+     *
+     * @param address 地址
+     * @param after   上一页的最后一条记录，查询第一页时为null
+     * @param limit   每页条数
+     * @return 交易所在的高度、位置和交易hash，交易本身可以通过{@link #getTransactionByHash(String)}查询
+     * @throws IllegalStateException 没有开启地址索引
+     */
+    public List<AddressIndex.Entry> getAddressHistory(String address, AddressIndex.Entry after, int limit) {
+        if (DBUtil.addressIndex == null) {
+            throw new IllegalStateException("没有开启地址索引，启动时加上-D" + DBUtil.ADDRESS_INDEX_PROPERTY + "=true");
+        }
+        return DBUtil.addressIndex.getHistory(address, after, limit);
     }
 
     /**
@@ -0,0 +1,228 @@
+package com.milkygreen.blockchain.core;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * 256位hash值
+ * 区块hash、交易hash、默克尔树根都是32字节的SHA-256结果。以前用64个字符的十六进制字符串表示，
+ * 一个字符串对象加上字符数组要占一百多字节，作为map的key时每次查找还要逐个字符计算hashCode、比较。
+ * 这里用4个long按大端顺序保存原始的32字节，hashCode在创建时算好，equals最多比较4次。
+ * 只有在需要展示、与外部交互的时候才转换成十六进制字符串。
+ * 对象不可变，可以放心地作为map的key共享。
+ */
+public final class Hash256 implements Comparable<Hash256>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 字节长度
+     */
+    public static final int LENGTH = 32;
+
+    /**
+     * 全0的hash
+     */
+    public static final Hash256 ZERO = new Hash256(0, 0, 0, 0);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long w0;
+
+    private final long w1;
+
+    private final long w2;
+
+    private final long w3;
+
+    /**
+     * hash值本身已经是均匀分布的，直接取其中的位即可
+     */
+    private final int hashCode;
+
+    private Hash256(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.hashCode = (int) (w0 ^ (w0 >>> 32) ^ w3);
+    }
+
+    /**
+     * 由32字节创建
+     */
+    public static Hash256 of(byte[] bytes) {
+        if (bytes.length != LENGTH) {
+            throw new IllegalArgumentException("hash长度必须是32字节，实际是" + bytes.length);
+        }
+        return of(bytes, 0);
+    }
+
+    /**
+     * 由数组中offset开始的32字节创建
+     */
+    public static Hash256 of(byte[] bytes, int offset) {
+        return new Hash256(readLong(bytes, offset), readLong(bytes, offset + 8),
+                readLong(bytes, offset + 16), readLong(bytes, offset + 24));
+    }
+
+    /**
+     * 由大端顺序的4个long创建，与{@link #word(int)}对应
+     */
+    public static Hash256 of(long w0, long w1, long w2, long w3) {
+        return new Hash256(w0, w1, w2, w3);
+    }
+
+    /**
+     * 从buffer当前位置读取32字节
+     */
+    public static Hash256 read(ByteBuffer buffer) {
+        return new Hash256(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * 由64个字符的十六进制字符串创建，null返回null
+     */
+    public static Hash256 fromHex(String hex) {
+        if (hex == null) {
+            return null;
+        }
+        if (hex.length() != LENGTH * 2) {
+            throw new IllegalArgumentException("hash长度不正确：" + hex);
+        }
+        return new Hash256(parseLong(hex, 0), parseLong(hex, 16), parseLong(hex, 32), parseLong(hex, 48));
+    }
+
+    /**
+     * null安全的十六进制转换
+     */
+    public static String toHex(Hash256 hash) {
+        return hash == null ? null : hash.toHex();
+    }
+
+    /**
+     * 第i个8字节(0-3)，大端，用于把hash保存到long数组中
+     */
+    public long word(int i) {
+        switch (i) {
+            case 0:
+                return w0;
+            case 1:
+                return w1;
+            case 2:
+                return w2;
+            case 3:
+                return w3;
+            default:
+                throw new IndexOutOfBoundsException("word index: " + i);
+        }
+    }
+
+    /**
+     * 32字节的新数组
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[LENGTH];
+        writeTo(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * 写入数组offset开始的32字节
+     */
+    public void writeTo(byte[] bytes, int offset) {
+        writeLong(bytes, offset, w0);
+        writeLong(bytes, offset + 8, w1);
+        writeLong(bytes, offset + 16, w2);
+        writeLong(bytes, offset + 24, w3);
+    }
+
+    /**
+     * 写入buffer当前位置
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putLong(w0).putLong(w1).putLong(w2).putLong(w3);
+    }
+
+    /**
+     * 小写十六进制字符串
+     */
+    public String toHex() {
+        char[] chars = new char[LENGTH * 2];
+        writeHex(chars, 0, w0);
+        writeHex(chars, 16, w1);
+        writeHex(chars, 32, w2);
+        writeHex(chars, 48, w3);
+        return new String(chars);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Hash256)) return false;
+        Hash256 other = (Hash256) o;
+        return hashCode == other.hashCode && w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    /**
+     * 按无符号大端整数比较
+     */
+    @Override
+    public int compareTo(Hash256 other) {
+        int result = Long.compareUnsigned(w0, other.w0);
+        if (result == 0) {
+            result = Long.compareUnsigned(w1, other.w1);
+        }
+        if (result == 0) {
+            result = Long.compareUnsigned(w2, other.w2);
+        }
+        if (result == 0) {
+            result = Long.compareUnsigned(w3, other.w3);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long parseLong(String hex, int offset) {
+        long value = 0;
+        for (int i = 0; i < 16; i++) {
+            int digit = Character.digit(hex.charAt(offset + i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("非法的十六进制字符串：" + hex);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static void writeHex(char[] chars, int offset, long value) {
+        for (int i = 15; i >= 0; i--) {
+            chars[offset + i] = HEX[(int) value & 0x0f];
+            value >>>= 4;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.milkygreen.blockchain.core;
 
 import com.milkygreen.blockchain.db.DBUtil;
+import com.milkygreen.blockchain.db.TransactionPool;
+import com.milkygreen.blockchain.util.BlockHasher;
 import com.milkygreen.blockchain.util.ByteUtil;
 import com.milkygreen.blockchain.util.CryptoUtil;
 import com.milkygreen.blockchain.util.TransactionUtil;
@@ -9,6 +11,8 @@ import com.milkygreen.blockchain.wallet.Wallet;
 
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 /**
  * 矿工
@@ -40,16 +44,44 @@ public class Miner implements Runnable {
      */
     public final static String difficulty = "00000fffffffffffffffffffffffffffffffffffffffffffffffffffffffffff";
 
+    /**
+     * 挖矿难度的字节形式，用于逐字节比较
+     */
+    private final static byte[] DIFFICULTY_TARGET = ByteUtil.hexStringToBytes(difficulty);
+
+    /**
+     * 每个区块代表的工作量，即平均要计算多少次hash才能得到一个小于difficulty的hash：2^256 / (difficulty + 1)
+     * 分叉时选择累计工作量最大的链，而不是最长的链。难度固定时两者等价，难度调整之后就不一样了。
+     */
+    public final static BigInteger BLOCK_WORK = BigInteger.ONE.shiftLeft(256)
+            .divide(new BigInteger(difficulty, 16).add(BigInteger.ONE));
+
     /**
      * 矿工是否在工作
+     * 请通过{@link #pause()}、{@link #resume()}修改，这样暂停中的矿工可以立刻被唤醒
+     */
+    public static volatile boolean isActive = true;
+
+    /**
+     * 暂停、恢复挖矿的通知对象
+     */
+    private static final Object ACTIVE_MONITOR = new Object();
+
+    /**
+     * 所有正在运行的矿工的挖矿引擎，暂停时逐个取消
      */
-    public static boolean isActive = true;
+    private static final List<MiningEngine> ENGINES = new CopyOnWriteArrayList<>();
 
     /**
      * 一个block中的交易数量限制，确保一个block不会太大
      */
     public static long transactionLimit = 1000;
 
+    /**
+     * 挖矿线程数量，默认使用全部CPU核心
+     */
+    public static int miningThreads = Runtime.getRuntime().availableProcessors();
+
     /**
      * 钱包实例，挖矿的奖励要放到这里
      */
@@ -83,52 +115,103 @@ public class Miner implements Runnable {
 
     @Override
     public void run() {
-        while (!Thread.currentThread().isInterrupted()) {
-            if (isActive) {
-                // 获取当前的最新区块
-                Block tailBlock = DBUtil.getTailBlock();
-                String preHash = tailBlock.getHash();
-                long preHeight = tailBlock.getHeight();
-                // 收集未确认交易
-                List<Transaction> transactions = collectUnConfirmTransactions();
-                if(transactions == null || transactions.size() == 0){
-                    continue;
-                }
-                Account account = CryptoUtil.randomAccount();
-                // 加入给自己的激励
-                Transaction incentivesTransaction = wallet.genIncentives(account);
-                transactions.add(incentivesTransaction);
-                // 构建block对象，计算hash
-                Block block = new Block();
-                block.setPreHash(preHash);
-                block.setHeight(preHeight+1);
-                block.setTransactions(transactions);
-                block.setTimestamp(System.currentTimeMillis());
-                block.setMerkleTree(TransactionUtil.genMerkleTree(transactions));
-                block.setType(Block.NORMAL_BLOCK);
-                block.setNonce(ByteUtil.bytesToUint64(ByteUtil.random32Bytes()));
-                String hash = Block.calculateHash(block);
-                block.setHash(hash);
-                // 不停的随机nonce并计算hash，直到符合difficulty要求。
-                while(new BigInteger(difficulty,16).compareTo(new BigInteger(block.getHash(),16)) <= 0){
-                    block.setNonce(ByteUtil.bytesToUint64(ByteUtil.random32Bytes()));
-                    hash = Block.calculateHash(block);
-                    block.setHash(hash);
-                }
-                // 挖矿成功，将奖励放入钱包，尽快广播block!
-                wallet.addAccount(account);
-                System.out.println("挖矿成功！");
-                this.sendBlock(block);
-            } else {
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        MiningEngine engine = new MiningEngine(miningThreads);
+        ENGINES.add(engine);
+        // 最新区块变化之后，正在挖的区块已经不可能被接受了，立刻停下来用新的最新区块重新构建
+        Consumer<Block> tipListener = block -> engine.cancel();
+        Blockchain.addTipListener(tipListener);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // 必须在检查暂停标记、读取最新区块之前取得取消代数，pause()先改标记再取消，两者之间的暂停也不会丢
+                long generation = engine.getGeneration();
+                if (isActive) {
+                    // 获取当前的最新区块
+                    Block tailBlock = DBUtil.getTailBlock();
+                    Hash256 preHash = tailBlock.getHashValue();
+                    long preHeight = tailBlock.getHeight();
+                    // 收集未确认交易
+                    List<Transaction> transactions = collectUnConfirmTransactions();
+                    if(transactions == null || transactions.size() == 0){
+                        // 没有交易可以打包，阻塞等待新交易进入交易池
+                        DBUtil.unConfirmTransactionPool.awaitTransactions();
+                        continue;
+                    }
+                    Account account = CryptoUtil.randomAccount();
+                    // 加入给自己的激励，激励交易必须放在最后，挖矿引擎会在nonce用完时修改它
+                    Transaction incentivesTransaction = wallet.genIncentives(account);
+                    transactions.add(incentivesTransaction);
+                    // 构建block模板
+                    Block template = new Block();
+                    template.setPreHashValue(preHash);
+                    template.setHeight(preHeight+1);
+                    template.setTransactions(transactions);
+                    template.setTimestamp(System.currentTimeMillis());
+                    template.setMerkleTreeValue(TransactionUtil.genMerkleTreeValue(transactions));
+                    template.setType(Block.NORMAL_BLOCK);
+                    // 多个线程并行计算nonce，直到符合difficulty要求。
+                    Block block = engine.mine(template, generation);
+                    if (block == null) {
+                        // 最新区块已经变化，重新构建
+                        continue;
+                    }
+                    // 挖矿成功，将奖励放入钱包，尽快广播block!
+                    wallet.addAccount(account);
+                    System.out.println("挖矿成功！");
+                    this.sendBlock(block);
+                } else {
+                    awaitResume();
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Blockchain.removeTipListener(tipListener);
+            ENGINES.remove(engine);
+            engine.shutdown();
         }
     }
 
+    /**
+     * 暂停所有矿工，正在计算的nonce区间也立刻停下来
+     */
+    public static void pause() {
+        isActive = false;
+        for (MiningEngine engine : ENGINES) {
+            engine.cancel();
+        }
+    }
+
+    /**
+     * 恢复所有矿工，并唤醒正在等待的矿工线程
+     */
+    public static void resume() {
+        synchronized (ACTIVE_MONITOR) {
+            isActive = true;
+            ACTIVE_MONITOR.notifyAll();
+        }
+    }
+
+    /**
+     * 阻塞等待挖矿恢复
+     * 直接修改isActive的话不会有通知，所以这里最多等待500毫秒就重新检查一次
+     */
+    private static void awaitResume() throws InterruptedException {
+        synchronized (ACTIVE_MONITOR) {
+            if (!isActive) {
+                ACTIVE_MONITOR.wait(500);
+            }
+        }
+    }
+
+    /**
+     * 判断区块hash是否符合difficulty要求，即hash必须小于difficulty
+     *
+     * @param hash 32字节的区块hash
+     */
+    public static boolean meetsDifficulty(byte[] hash) {
+        return BlockHasher.lessThan(hash, DIFFICULTY_TARGET);
+    }
+
     /**
      * 将挖到的block发送出去
      * @param block 区块
@@ -143,17 +226,11 @@ public class Miner implements Runnable {
      * @return List<Transaction>
      */
     public List<Transaction> collectUnConfirmTransactions() {
-        Map<String, Transaction> unConfirmTransactionPool = DBUtil.unConfirmTransactionPool;
-        if (unConfirmTransactionPool.size() == 0) {
+        TransactionPool unConfirmTransactionPool = DBUtil.unConfirmTransactionPool;
+        if (unConfirmTransactionPool.isEmpty()) {
             return null;
         }
-        // 要按时间顺序处理交易
-        List<Transaction> transactions = new ArrayList<>(unConfirmTransactionPool.values());
-        transactions.sort((Transaction o1, Transaction o2) -> o1.getTimestamp() > o2.getTimestamp() ? 1 : -1);
-        List<Transaction> ret = new ArrayList<>();
-        for (int i = 0; i < transactionLimit && i < transactions.size(); i++) {
-            ret.add(transactions.get(i));
-        }
-        return ret;
+        // 要按时间顺序处理交易，交易池的索引已经排好序了
+        return unConfirmTransactionPool.select(transactionLimit);
     }
 }
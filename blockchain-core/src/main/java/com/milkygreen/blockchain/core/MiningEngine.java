@@ -0,0 +1,289 @@
+package com.milkygreen.blockchain.core;
+
+import com.milkygreen.blockchain.util.BlockHasher;
+import com.milkygreen.blockchain.util.MerkleTree;
+import com.milkygreen.blockchain.util.TransactionUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 并行挖矿引擎
+ * 把64位的nonce空间平均切分成若干段，每个工作线程只在自己的那一段里顺序递增nonce，线程之间不会重复计算同一个nonce。
+ * 某个线程的nonce区间用完之后，修改激励交易的nonce（即extra-nonce），默克尔树随之改变，然后重新扫描自己的区间。
+ * 任意一个线程找到符合difficulty要求的hash之后，其余线程立刻停止。
+ */
+public class MiningEngine {
+
+    /**
+     * 每计算这么多次hash，汇总一次算力统计并检查一次取消标记
+     */
+    private static final int HASH_COUNT_BATCH = 1 << 12;
+
+    /**
+     * 工作线程数量
+     */
+    private final int workers;
+
+    /**
+     * 工作线程池
+     */
+    private final ExecutorService executor;
+
+    /**
+     * 累计计算的hash次数，用来统计算力
+     */
+    private final LongAdder hashCount = new LongAdder();
+
+    /**
+     * 取消代数，每次调用{@link #cancel()}加一。
+     * 调用方在读取最新区块之前先记下它，开始挖矿时如果发现已经变化，说明模板在构建期间就已经过期了。
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * 正在进行的挖矿任务
+     */
+    private volatile Job currentJob;
+
+    public MiningEngine(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("挖矿线程数量必须大于0");
+        }
+        this.workers = workers;
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "mining-worker-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 并行计算区块的nonce，直到找到合法的hash
+     */
+    public Block mine(Block template) throws InterruptedException {
+        return mine(template, generation.get());
+    }
+
+    /**
+     * 并行计算区块的nonce，直到找到合法的hash或者任务被取消
+     * 区块的最后一笔交易必须是激励交易，nonce区间用完的时候会修改它来获得新的搜索空间。
+     *
+     * @param template 区块模板，除了nonce和hash之外的字段都已经填好
+     * @param expectedGeneration 构建模板之前通过{@link #getGeneration()}取得的取消代数
+     * @return 挖到的区块（与模板不是同一个对象），任务被取消时返回null
+     * @throws InterruptedException 等待过程中线程被中断，此时所有工作线程都会停止
+     */
+    public Block mine(Block template, long expectedGeneration) throws InterruptedException {
+        Job job = new Job(template);
+        currentJob = job;
+        // 先发布任务再检查代数，与cancel()的顺序相反，保证取消请求不会丢失
+        if (generation.get() != expectedGeneration) {
+            currentJob = null;
+            return null;
+        }
+        List<Future<?>> futures = new ArrayList<>(workers);
+        long rangeSize = Long.divideUnsigned(-1L, workers);
+        for (int i = 0; i < workers; i++) {
+            long start = rangeSize * i;
+            // 最后一段把除不尽的部分也包含进去
+            long end = i == workers - 1 ? -1L : start + rangeSize;
+            futures.add(executor.submit(() -> search(job, start, end)));
+        }
+        try {
+            job.done.await();
+        } finally {
+            job.cancel();
+            currentJob = null;
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return job.result;
+    }
+
+    /**
+     * 取消正在进行的挖矿任务，例如最新区块发生变化的时候。
+     * 工作线程每计算{@value #HASH_COUNT_BATCH}次hash检查一次取消标记，所以取消的延迟是有上限的。
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+        Job job = currentJob;
+        if (job != null) {
+            job.cancel();
+        }
+    }
+
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * 单个工作线程的搜索逻辑，扫描[start, end)区间内的nonce
+     */
+    private void search(Job job, long start, long end) {
+        Block block = copyHeader(job.template);
+        block.setTransactions(job.template.getTransactions());
+        // 区块头的固定部分只计算一次，循环内不创建任何对象
+        BlockHasher hasher = new BlockHasher();
+        // 修改激励交易时只需要更新默克尔树的一条路径，第一次需要时才构建
+        MerkleTree merkleTree = null;
+        long extraNonce = 0;
+        int uncounted = 0;
+        while (!job.cancelled) {
+            hasher.init(block);
+            for (long nonce = start; nonce != end; nonce++) {
+                byte[] hash = hasher.hash(nonce);
+                if (Miner.meetsDifficulty(hash)) {
+                    block.setNonce(nonce);
+                    block.setHashValue(Hash256.of(hash));
+                    job.complete(block);
+                    hashCount.add(uncounted + 1);
+                    return;
+                }
+                if (++uncounted == HASH_COUNT_BATCH) {
+                    hashCount.add(uncounted);
+                    uncounted = 0;
+                    if (job.cancelled) {
+                        return;
+                    }
+                }
+            }
+            // 本线程的nonce区间已经用完，修改激励交易换一个默克尔树继续挖
+            if (merkleTree == null) {
+                merkleTree = TransactionUtil.buildMerkleTree(job.template.getTransactions());
+            }
+            extraNonce++;
+            rollExtraNonce(block, job.template, extraNonce, merkleTree);
+        }
+        hashCount.add(uncounted);
+    }
+
+    /**
+     * 用新的extra-nonce重新生成激励交易，并更新区块的默克尔树
+     */
+    private static void rollExtraNonce(Block block, Block template, long extraNonce, MerkleTree merkleTree) {
+        List<Transaction> transactions = new ArrayList<>(template.getTransactions());
+        Transaction incentive = transactions.get(transactions.size() - 1);
+        if (incentive.getType() != Transaction.TRANSACTION_TYPE_INCENTIVE) {
+            throw new IllegalStateException("区块的最后一笔交易必须是激励交易");
+        }
+        Transaction rolled = new Transaction();
+        rolled.setType(incentive.getType());
+        rolled.setTimestamp(incentive.getTimestamp());
+        rolled.setAmount(incentive.getAmount());
+        rolled.setPayee(incentive.getPayee());
+        rolled.setNonce(incentive.getNonce() + extraNonce);
+        Hash256 hash = TransactionUtil.calculateHashValue(rolled);
+        rolled.setHashValue(hash);
+        List<TransactionOutput> outputs = new ArrayList<>();
+        for (TransactionOutput output : incentive.getOutputs()) {
+            TransactionOutput rolledOutput = new TransactionOutput();
+            rolledOutput.setTransactionHashValue(hash);
+            rolledOutput.setIndex(output.getIndex());
+            rolledOutput.setAmount(output.getAmount());
+            rolledOutput.setAccount(output.getAccount());
+            outputs.add(rolledOutput);
+        }
+        rolled.setOutputs(outputs);
+        transactions.set(transactions.size() - 1, rolled);
+        block.setTransactions(transactions);
+        merkleTree.set(transactions.size() - 1, hash.toBytes());
+        block.setMerkleTreeValue(Hash256.of(merkleTree.root()));
+    }
+
+    /**
+     * 复制区块头字段，交易列表由调用方设置
+     */
+    private static Block copyHeader(Block template) {
+        Block block = new Block();
+        block.setPreHashValue(template.getPreHashValue());
+        block.setHeight(template.getHeight());
+        block.setTimestamp(template.getTimestamp());
+        block.setMerkleTreeValue(template.getMerkleTreeValue());
+        block.setType(template.getType());
+        return block;
+    }
+
+    /**
+     * 累计计算的hash次数。两次调用的差值除以时间间隔就是算力。
+     */
+    public long getHashCount() {
+        return hashCount.sum();
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * 停止所有工作线程
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 一次挖矿任务，所有工作线程共享
+     */
+    private static class Job {
+
+        private final Block template;
+
+        private static final int RUNNING = 0;
+
+        private static final int COMPLETED = 1;
+
+        private static final int CANCELLED = 2;
+
+        /**
+         * 任务只能从RUNNING变成COMPLETED或者CANCELLED一次，先到的一方生效
+         */
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+        /**
+         * 挖到的区块，在done计数归零之前写入
+         */
+        private volatile Block result;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * 工作线程检查的停止标记，完成和取消都会设置
+         */
+        private volatile boolean cancelled;
+
+        Job(Block template) {
+            this.template = template;
+        }
+
+        /**
+         * 只有第一个找到的结果会被采用，然后通知其他线程停止
+         * 任务已经被取消时什么都不做：工作线程在两次检查取消标记之间找到的nonce是基于过期的最新区块的。
+         */
+        void complete(Block block) {
+            if (state.compareAndSet(RUNNING, COMPLETED)) {
+                result = block;
+                stop();
+            }
+        }
+
+        void cancel() {
+            state.compareAndSet(RUNNING, CANCELLED);
+            stop();
+        }
+
+        private void stop() {
+            cancelled = true;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.milkygreen.blockchain.core;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * 输出点
+ * 由交易hash和输出在交易中的索引组成，唯一定位一个交易输出。
+ */
+public class OutPoint implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 输出所在的交易hash
+     */
+    private final Hash256 transactionHash;
+
+    /**
+     * 输出在交易输出列表中的索引
+     */
+    private final int index;
+
+    public OutPoint(Hash256 transactionHash, int index) {
+        this.transactionHash = transactionHash;
+        this.index = index;
+    }
+
+    /**
+     * 交易输出对应的输出点
+     */
+    public static OutPoint of(TransactionOutput output) {
+        return new OutPoint(output.getTransactionHashValue(), output.getIndex());
+    }
+
+    public Hash256 getTransactionHash() {
+        return transactionHash;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        OutPoint outPoint = (OutPoint) o;
+        return index == outPoint.index &&
+                Objects.equals(transactionHash, outPoint.transactionHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hashCode(transactionHash) + index;
+    }
+
+    @Override
+    public String toString() {
+        return transactionHash + ":" + index;
+    }
+}
@@ -26,7 +26,7 @@ public class Transaction implements Serializable {
     /**
      * 交易的hash值
      */
-    private String hash;
+    private Hash256 hash;
 
     /**
      * 交易的输入。
@@ -82,10 +82,18 @@ public class Transaction implements Serializable {
     }
 
     public String getHash() {
-        return hash;
+        return Hash256.toHex(hash);
     }
 
     public void setHash(String hash) {
+        this.hash = Hash256.fromHex(hash);
+    }
+
+    public Hash256 getHashValue() {
+        return hash;
+    }
+
+    public void setHashValue(Hash256 hash) {
         this.hash = hash;
     }
 
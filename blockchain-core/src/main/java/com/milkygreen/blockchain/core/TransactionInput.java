@@ -7,11 +7,21 @@ import java.io.Serializable;
  */
 public class TransactionInput implements Serializable {
 
+    /**
+     * 签名算法：ECDSA
+     */
+    public final static int SIGNATURE_TYPE_ECDSA = 0;
+
+    /**
+     * 签名算法：Schnorr（BIP340），同一个区块中的Schnorr签名可以批量验证
+     */
+    public final static int SIGNATURE_TYPE_SCHNORR = 1;
+
     /**
      * 交易hash
      * 该输入隶属于哪个交易
      */
-    private String transactionHash;
+    private Hash256 transactionHash;
 
     /**
      * 组成该交易输入的输出
@@ -32,11 +42,24 @@ public class TransactionInput implements Serializable {
      */
     private String publicKey;
 
+    /**
+     * 签名算法，默认是ECDSA，之前的交易没有这个字段，也按ECDSA验证
+     */
+    private int signatureType = SIGNATURE_TYPE_ECDSA;
+
     public String getTransactionHash() {
-        return transactionHash;
+        return Hash256.toHex(transactionHash);
     }
 
     public void setTransactionHash(String transactionHash) {
+        this.transactionHash = Hash256.fromHex(transactionHash);
+    }
+
+    public Hash256 getTransactionHashValue() {
+        return transactionHash;
+    }
+
+    public void setTransactionHashValue(Hash256 transactionHash) {
         this.transactionHash = transactionHash;
     }
 
@@ -63,4 +86,12 @@ public class TransactionInput implements Serializable {
     public void setPublicKey(String publicKey) {
         this.publicKey = publicKey;
     }
+
+    public int getSignatureType() {
+        return signatureType;
+    }
+
+    public void setSignatureType(int signatureType) {
+        this.signatureType = signatureType;
+    }
 }
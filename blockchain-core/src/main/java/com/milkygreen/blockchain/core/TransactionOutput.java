@@ -15,7 +15,7 @@ public class TransactionOutput implements Serializable {
      * 交易hash
      * 该输入隶属于哪个交易
      */
-    private String transactionHash;
+    private Hash256 transactionHash;
 
     /**
      * 金额
@@ -34,10 +34,18 @@ public class TransactionOutput implements Serializable {
     private int index;
 
     public String getTransactionHash() {
-        return transactionHash;
+        return Hash256.toHex(transactionHash);
     }
 
     public void setTransactionHash(String transactionHash) {
+        this.transactionHash = Hash256.fromHex(transactionHash);
+    }
+
+    public Hash256 getTransactionHashValue() {
+        return transactionHash;
+    }
+
+    public void setTransactionHashValue(Hash256 transactionHash) {
         this.transactionHash = transactionHash;
     }
 
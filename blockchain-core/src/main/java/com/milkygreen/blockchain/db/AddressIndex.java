@@ -0,0 +1,223 @@
+package com.milkygreen.blockchain.db;
+
+import com.milkygreen.blockchain.core.Block;
+import com.milkygreen.blockchain.core.Hash256;
+import com.milkygreen.blockchain.core.Transaction;
+import com.milkygreen.blockchain.core.TransactionInput;
+import com.milkygreen.blockchain.core.TransactionOutput;
+import com.milkygreen.blockchain.util.AddressCache;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 地址交易历史索引，可选
+ * {@link UTXOSet}只记录地址当前的未花费输出，要查一个地址参与过的所有交易只能遍历整条链。
+ * 这个索引在区块连接到主链时，为每笔交易涉及的每个地址（付款人和收款人）记一条(地址, 区块高度, 交易位置)，
+ * 区块断开时删掉，数据保存在{@link KVStore}中，按key有序。
+ * key是 'a' | 公钥哈希(20字节) | 高度取反(4字节) | 位置取反(4字节)，value是交易hash。
+ * 高度和位置取反之后，同一个地址的条目按从新到旧排列，分页查询时从上一页最后一条之后开始扫描即可，代价是O(log n + 页大小)。
+ * 索引记录了它对应的主链最新区块，启动时与链状态对齐。
+ */
+public class AddressIndex implements ChainIndex, Closeable {
+
+    private static final byte ENTRY_PREFIX = 'a';
+
+    private static final byte[] TIP_KEY = {'T'};
+
+    private static final int KEY_LENGTH = 1 + AddressCache.PUBLIC_KEY_HASH_LENGTH + 4 + 4;
+
+    private final KVStore store;
+
+    /**
+     * 索引中的一条记录：地址参与过的一笔交易
+     * 也用作分页查询的游标，下一页从这条记录之后开始。
+     */
+    public static final class Entry {
+
+        private final long height;
+
+        private final int position;
+
+        private final Hash256 transactionHash;
+
+        public Entry(long height, int position, Hash256 transactionHash) {
+            this.height = height;
+            this.position = position;
+            this.transactionHash = transactionHash;
+        }
+
+        /**
+         * 交易所在区块的高度
+         */
+        public long getHeight() {
+            return height;
+        }
+
+        /**
+         * 交易在区块中的位置
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        public Hash256 getTransactionHash() {
+            return transactionHash;
+        }
+
+        @Override
+        public String toString() {
+            return height + ":" + position + ":" + transactionHash;
+        }
+    }
+
+    public AddressIndex(Path directory) {
+        this.store = new KVStore(directory);
+    }
+
+    /**
+     * 为连接到主链上的区块建立索引，与索引的最新区块在同一批写入中更新
+     */
+    @Override
+    public void connectBlock(Block block) {
+        WriteBatch batch = new WriteBatch();
+        List<Transaction> transactions = block.getTransactions();
+        for (int position = 0; position < transactions.size(); position++) {
+            Transaction transaction = transactions.get(position);
+            byte[] hash = transaction.getHashValue().toBytes();
+            for (byte[] publicKeyHash : addresses(transaction)) {
+                batch.put(key(publicKeyHash, block.getHeight(), position), hash);
+            }
+        }
+        ByteBuffer tip = ByteBuffer.allocate(Hash256.LENGTH + 8);
+        block.getHashValue().writeTo(tip);
+        tip.putLong(block.getHeight());
+        batch.put(TIP_KEY, tip.array());
+        store.write(batch);
+    }
+
+    /**
+     * 删除从主链上断开的区块的索引，索引的最新区块退回到父区块
+     */
+    @Override
+    public void disconnectBlock(Block block) {
+        WriteBatch batch = new WriteBatch();
+        List<Transaction> transactions = block.getTransactions();
+        for (int position = 0; position < transactions.size(); position++) {
+            for (byte[] publicKeyHash : addresses(transactions.get(position))) {
+                batch.delete(key(publicKeyHash, block.getHeight(), position));
+            }
+        }
+        if (block.getPreHashValue() == null) {
+            batch.delete(TIP_KEY);
+        } else {
+            ByteBuffer tip = ByteBuffer.allocate(Hash256.LENGTH + 8);
+            block.getPreHashValue().writeTo(tip);
+            tip.putLong(block.getHeight() - 1);
+            batch.put(TIP_KEY, tip.array());
+        }
+        store.write(batch);
+    }
+
+    /**
+     * 查询地址参与过的交易，从新到旧
+     *
+     * @param address 地址
+     * @param after   上一页的最后一条记录，查询第一页时为null
+     * @param limit   最多返回的条数
+     * @return 地址不合法或者没有更多记录时返回空列表
+     */
+    public List<Entry> getHistory(String address, Entry after, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("每页条数必须大于0：" + limit);
+        }
+        List<Entry> entries = new ArrayList<>();
+        byte[] publicKeyHash = AddressCache.publicKeyHash(address);
+        if (publicKeyHash == null) {
+            return entries;
+        }
+        byte[] prefix = new byte[1 + publicKeyHash.length];
+        prefix[0] = ENTRY_PREFIX;
+        System.arraycopy(publicKeyHash, 0, prefix, 1, publicKeyHash.length);
+        byte[] start = prefix;
+        if (after != null) {
+            // 比游标大的最小key：游标的key后面加一个0字节
+            start = new byte[KEY_LENGTH + 1];
+            System.arraycopy(key(publicKeyHash, after.getHeight(), after.getPosition()), 0, start, 0, KEY_LENGTH);
+        }
+        store.scan(prefix, start, (key, value) -> {
+            ByteBuffer buffer = ByteBuffer.wrap(key, prefix.length, 8);
+            long height = ~buffer.getInt() & 0xffffffffL;
+            int position = ~buffer.getInt();
+            entries.add(new Entry(height, position, Hash256.of(value)));
+            return entries.size() < limit;
+        });
+        return entries;
+    }
+
+    /**
+     * 索引对应的主链最新区块
+     *
+     * @return 还没有索引任何区块时返回null
+     */
+    @Override
+    public Hash256 getTipHash() {
+        byte[] tip = store.get(TIP_KEY);
+        return tip == null ? null : Hash256.of(tip, 0);
+    }
+
+    /**
+     * 索引对应的主链最新区块的高度，还没有索引任何区块时返回-1
+     */
+    public long getTipHeight() {
+        byte[] tip = store.get(TIP_KEY);
+        return tip == null ? -1 : ByteBuffer.wrap(tip).getLong(Hash256.LENGTH);
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    /**
+     * 交易涉及的地址的公钥哈希，付款人在前，同一个地址只出现一次
+     */
+    private static List<byte[]> addresses(Transaction transaction) {
+        Set<ByteBuffer> distinct = new LinkedHashSet<>();
+        if (transaction.getType() == Transaction.TRANSACTION_TYPE_NORMAL) {
+            for (TransactionInput input : transaction.getInputs()) {
+                addAddress(distinct, input.getUnspentOutput().getAccount());
+            }
+        }
+        for (TransactionOutput output : transaction.getOutputs()) {
+            addAddress(distinct, output.getAccount());
+        }
+        List<byte[]> publicKeyHashes = new ArrayList<>(distinct.size());
+        for (ByteBuffer publicKeyHash : distinct) {
+            publicKeyHashes.add(publicKeyHash.array());
+        }
+        return publicKeyHashes;
+    }
+
+    private static void addAddress(Set<ByteBuffer> distinct, String address) {
+        byte[] publicKeyHash = AddressCache.publicKeyHash(address);
+        if (publicKeyHash == null) {
+            throw new IllegalArgumentException("非法的地址：" + address);
+        }
+        distinct.add(ByteBuffer.wrap(publicKeyHash));
+    }
+
+    private static byte[] key(byte[] publicKeyHash, long height, int position) {
+        ByteBuffer key = ByteBuffer.allocate(KEY_LENGTH);
+        key.put(ENTRY_PREFIX);
+        key.put(publicKeyHash);
+        key.putInt(~(int) height);
+        key.putInt(~position);
+        return key.array();
+    }
+}
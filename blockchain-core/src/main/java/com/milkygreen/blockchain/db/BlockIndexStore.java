@@ -0,0 +1,58 @@
+package com.milkygreen.blockchain.db;
+
+import com.milkygreen.blockchain.core.Hash256;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * 区块树节点的状态，目前只有校验失败标记
+ * 区块树启动时根据区块文件重建，区块文件只追加不修改，所以校验失败的标记单独保存在{@link KVStore}中，
+ * 否则重启之后又会去连接已知非法的区块。
+ * key是 'f' | 区块hash，value固定是1个字节。只记录校验失败的区块本身，它的后代在重建区块树时一并标记。
+ */
+public class BlockIndexStore implements Closeable {
+
+    private static final byte FAILED_PREFIX = 'f';
+
+    private static final byte[] FAILED_PREFIX_KEY = {FAILED_PREFIX};
+
+    private static final byte[] FAILED_VALUE = {1};
+
+    private final KVStore store;
+
+    public BlockIndexStore(Path directory) {
+        this.store = new KVStore(directory);
+    }
+
+    /**
+     * 记录区块校验失败
+     */
+    public void setFailed(Hash256 hash) {
+        store.put(failedKey(hash), FAILED_VALUE);
+    }
+
+    public boolean isFailed(Hash256 hash) {
+        return store.get(failedKey(hash)) != null;
+    }
+
+    /**
+     * 遍历所有校验失败的区块
+     */
+    public void forEachFailed(Consumer<Hash256> consumer) {
+        store.scan(FAILED_PREFIX_KEY, (key, value) -> consumer.accept(Hash256.of(key, 1)));
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    private static byte[] failedKey(Hash256 hash) {
+        byte[] key = new byte[1 + Hash256.LENGTH];
+        key[0] = FAILED_PREFIX;
+        System.arraycopy(hash.toBytes(), 0, key, 1, Hash256.LENGTH);
+        return key;
+    }
+}
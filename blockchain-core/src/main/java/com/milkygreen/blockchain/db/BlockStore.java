@@ -0,0 +1,395 @@
+package com.milkygreen.blockchain.db;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.milkygreen.blockchain.core.Block;
+import com.milkygreen.blockchain.core.Hash256;
+import com.milkygreen.blockchain.util.BinaryCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * 区块文件存储
+ * 区块按{@link BinaryCodec}编码之后追加写入固定大小的段文件(blk00000.dat, blk00001.dat...)，当前段写满之后新建下一个段。
+ * 每个段文件整个只读映射到内存(MappedByteBuffer)，读取直接在映射区域上解码，不经过中间数组，由操作系统负责缓存。
+ * 写入通过段文件的FileChannel，和映射区域共享操作系统的页缓存，写完马上就能读到。
+ * 区块是在矿工线程里写入的，通道用{@link ReopeningChannel}，矿工被中断时不会让段文件失效。
+ * 持久性：每追加一个区块就调用一次FileChannel.force(false)，只把这次写入的数据刷到磁盘，append返回时区块已经落盘；
+ * 段文件的大小在创建时就固定了，所以不需要刷新文件元数据。
+ * 每条记录的格式：魔数(4字节) | 长度(4字节) | CRC32(4字节) | 区块编码，整条记录一次写入，写了一半的记录由CRC32识别。
+ * 分叉上的区块也保存在这里，哪些区块在主链上由调用方通过{@link #setMainChainBlock(long, Hash256)}指定。
+ * 内存中只保存索引：区块hash-(段号, 偏移量)，主链高度-区块hash（{@link HeightIndex}），以及最近读写过的少量区块，整条链不需要都放在堆上。
+ * 启动时依次扫描每个段，遇到魔数不对、长度越界或者校验和不一致的记录就认为是段的末尾（进程崩溃时写了一半的记录），
+ * 把写了一半的记录清零，下一个区块从这里开始写。hash索引也是在扫描时重建的，只需要解码区块头，主链索引由调用方重建。
+ * 所有方法都是线程安全的。
+ */
+public class BlockStore implements Closeable {
+
+    /**
+     * 默认段文件大小：64MB
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * 记录的魔数："BLK1"
+     */
+    private static final int MAGIC = 0x424c4b31;
+
+    /**
+     * 记录头长度：魔数、长度、CRC32
+     */
+    private static final int RECORD_HEADER_LENGTH = 12;
+
+    /**
+     * 缓存的区块数量
+     */
+    private static final int CACHE_SIZE = 64;
+
+    private static final String SEGMENT_PREFIX = "blk";
+
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final List<Segment> segments = new ArrayList<>();
+
+    /**
+     * 区块hash-位置，高32位是段号，低32位是记录在段中的偏移量
+     */
+    private final Map<Hash256, Long> locations = new ConcurrentHashMap<>();
+
+    /**
+     * 主链高度-区块hash
+     */
+    private final HeightIndex heights = new HeightIndex();
+
+    /**
+     * 最近读写过的区块，最新区块会被频繁读取
+     */
+    private final Cache<Hash256, Block> cache = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .build();
+
+    /**
+     * 一个段文件
+     */
+    private static class Segment {
+
+        final ReopeningChannel channel;
+
+        final MappedByteBuffer buffer;
+
+        /**
+         * 下一条记录的写入位置
+         */
+        int position;
+
+        Segment(ReopeningChannel channel, MappedByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    public BlockStore(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * 打开目录下的区块文件，目录不存在时创建
+     *
+     * @param directory   存放段文件的目录
+     * @param segmentSize 新建段文件的大小
+     */
+    public BlockStore(Path directory, int segmentSize) {
+        if (segmentSize <= RECORD_HEADER_LENGTH) {
+            throw new IllegalArgumentException("段文件太小：" + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        try {
+            Files.createDirectories(directory);
+            for (int number = 0; Files.exists(segmentPath(number)); number++) {
+                Segment segment = openSegment(number);
+                segments.add(segment);
+                recover(number, segment);
+            }
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException("打开区块文件失败：" + directory, e);
+        }
+    }
+
+    /**
+     * 追加保存一个区块，并强制写入磁盘，区块不会自动成为主链的一部分
+     *
+     * @throws IllegalArgumentException 区块没有hash，或者编码之后比段文件还大
+     */
+    public synchronized void append(Block block) {
+        Hash256 hash = block.getHashValue();
+        if (hash == null) {
+            throw new IllegalArgumentException("区块缺少hash");
+        }
+        int length = BinaryCodec.sizeOfBlock(block);
+        if (length > segmentSize - RECORD_HEADER_LENGTH) {
+            throw new IllegalArgumentException("区块太大：" + length + "字节");
+        }
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.position + RECORD_HEADER_LENGTH + length > segment.buffer.capacity()) {
+            try {
+                segment = openSegment(segments.size());
+            } catch (IOException e) {
+                throw new UncheckedIOException("创建区块文件失败", e);
+            }
+            segments.add(segment);
+        }
+        int offset = segment.position;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+        BinaryCodec.writeBlock(slice(record, RECORD_HEADER_LENGTH, length), block);
+        record.putInt(0, MAGIC);
+        record.putInt(4, length);
+        record.putInt(8, crc(record, RECORD_HEADER_LENGTH, length));
+        try {
+            segment.channel.write(record, offset);
+            segment.channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("写区块文件失败", e);
+        }
+        segment.position = offset + RECORD_HEADER_LENGTH + length;
+
+        locations.put(hash, location(segments.size() - 1, offset));
+        cache.put(hash, block);
+    }
+
+    /**
+     * 根据hash读取区块
+     *
+     * @return 不存在时返回null
+     */
+    public Block getBlock(Hash256 hash) {
+        if (hash == null) {
+            return null;
+        }
+        Block block = cache.getIfPresent(hash);
+        if (block != null) {
+            return block;
+        }
+        Long location = locations.get(hash);
+        if (location == null) {
+            return null;
+        }
+        Segment segment;
+        synchronized (this) {
+            segment = segments.get((int) (location >>> 32));
+        }
+        int offset = (int) (long) location;
+        int length = segment.buffer.getInt(offset + 4);
+        // 直接从映射区域解码，不复制到堆上
+        block = BinaryCodec.readBlock(slice(segment.buffer, offset + RECORD_HEADER_LENGTH, length));
+        cache.put(hash, block);
+        return block;
+    }
+
+    /**
+     * 读取主链上指定高度的区块
+     *
+     * @return 不存在时返回null
+     */
+    public Block getBlock(long height) {
+        return getBlock(heights.get(height));
+    }
+
+    /**
+     * 读取主链上高度在[from, to]之间的区块，按高度顺序
+     * 先一次性取出这段高度的区块hash，再逐个读取区块。
+     *
+     * @return 超出最大高度的部分不返回
+     */
+    public List<Block> getBlocks(long from, long to) {
+        Hash256[] hashes = heights.get(from, to);
+        List<Block> blocks = new ArrayList<>(hashes.length);
+        for (Hash256 hash : hashes) {
+            Block block = getBlock(hash);
+            if (block != null) {
+                blocks.add(block);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * 主链上指定高度的区块hash
+     *
+     * @return 不存在时返回null
+     */
+    public Hash256 getBlockHash(long height) {
+        return heights.get(height);
+    }
+
+    /**
+     * 把已经保存的区块设为主链上指定高度的区块
+     */
+    public void setMainChainBlock(long height, Hash256 hash) {
+        if (!locations.containsKey(hash)) {
+            throw new IllegalArgumentException("区块不在区块文件中：" + hash);
+        }
+        heights.set(height, hash);
+    }
+
+    /**
+     * 断开主链上指定高度的区块
+     */
+    public void removeMainChainBlock(long height) {
+        heights.remove(height);
+    }
+
+    /**
+     * 依次解码每个已保存区块的区块头（不含交易），顺序不确定
+     */
+    public void forEachHeader(Consumer<Block> consumer) {
+        for (Long location : locations.values()) {
+            Segment segment;
+            synchronized (this) {
+                segment = segments.get((int) (location >>> 32));
+            }
+            int offset = (int) (long) location;
+            int length = segment.buffer.getInt(offset + 4);
+            consumer.accept(BinaryCodec.readBlockHeader(slice(segment.buffer, offset + RECORD_HEADER_LENGTH, length)));
+        }
+    }
+
+    public boolean contains(Hash256 hash) {
+        return locations.containsKey(hash);
+    }
+
+    /**
+     * 主链的最大高度，主链上没有区块时返回-1
+     */
+    public long getMaxHeight() {
+        return heights.getMaxHeight();
+    }
+
+    /**
+     * 已保存的区块数量
+     */
+    public int size() {
+        return locations.size();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 关闭所有段文件，之后不能再使用
+     */
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                // 关闭失败不影响已经写入的数据
+            }
+        }
+        segments.clear();
+    }
+
+    /**
+     * 扫描段文件，重建索引，并确定写入位置
+     */
+    private void recover(int number, Segment segment) throws IOException {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + RECORD_HEADER_LENGTH <= buffer.capacity() && buffer.getInt(position) == MAGIC) {
+            int length = buffer.getInt(position + 4);
+            int start = position + RECORD_HEADER_LENGTH;
+            if (length <= 0 || length > buffer.capacity() - start
+                    || buffer.getInt(position + 8) != crc(buffer, start, length)) {
+                break;
+            }
+            Block header;
+            try {
+                header = BinaryCodec.readBlockHeader(slice(buffer, start, length));
+            } catch (RuntimeException e) {
+                break;
+            }
+            if (header.getHashValue() == null) {
+                break;
+            }
+            locations.put(header.getHashValue(), location(number, position));
+            position = start + length;
+        }
+        segment.position = position;
+        // 清掉写了一半的记录，免得以后写入较短的记录之后，剩下的部分被误认为是一条记录
+        if (position + RECORD_HEADER_LENGTH <= buffer.capacity()) {
+            int length = buffer.getInt(position + 4);
+            int end = (int) Math.min(position + RECORD_HEADER_LENGTH + (length > 0 ? (long) length : 0), buffer.capacity());
+            for (int i = position; i < end; i++) {
+                if (buffer.get(i) != 0) {
+                    segment.channel.write(ByteBuffer.allocate(end - position), position);
+                    segment.channel.force(false);
+                    break;
+                }
+            }
+        }
+    }
+
+    private Segment openSegment(int number) throws IOException {
+        ReopeningChannel channel = new ReopeningChannel(segmentPath(number),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            if (size < segmentSize) {
+                // 新段文件先扩展到固定大小，并刷新元数据，之后的追加写入只需要刷新数据
+                channel.write(ByteBuffer.allocate(1), segmentSize - 1);
+                channel.force(true);
+                size = segmentSize;
+            }
+            return new Segment(channel, channel.map(size));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("%s%05d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    /**
+     * 映射区域中[offset, offset + length)的视图，与原buffer共享内容，位置互不影响
+     * 转成Buffer再调用position、limit，这样在高版本JDK上编译的class在Java 8上也能运行
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        ((Buffer) view).limit(offset + length);
+        ((Buffer) view).position(offset);
+        return view.slice();
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(slice(buffer, offset, length));
+        return (int) crc.getValue();
+    }
+}
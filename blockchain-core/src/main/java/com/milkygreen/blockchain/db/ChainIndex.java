@@ -0,0 +1,28 @@
+package com.milkygreen.blockchain.db;
+
+import com.milkygreen.blockchain.core.Block;
+import com.milkygreen.blockchain.core.Hash256;
+
+/**
+ * 随主链连接、断开区块而更新的持久化索引
+ * 索引和链状态分别写入，进程崩溃之后两者的最新区块可能不同，启动时由{@link DBUtil}对齐。
+ */
+interface ChainIndex {
+
+    /**
+     * 为连接到主链上的区块建立索引，索引的最新区块前进到这个区块
+     */
+    void connectBlock(Block block);
+
+    /**
+     * 删除从主链上断开的区块的索引，索引的最新区块退回到父区块
+     */
+    void disconnectBlock(Block block);
+
+    /**
+     * 索引对应的主链最新区块
+     *
+     * @return 还没有索引任何区块时返回null
+     */
+    Hash256 getTipHash();
+}
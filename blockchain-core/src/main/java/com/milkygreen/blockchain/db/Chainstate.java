@@ -0,0 +1,120 @@
+package com.milkygreen.blockchain.db;
+
+import com.milkygreen.blockchain.core.Hash256;
+import com.milkygreen.blockchain.core.OutPoint;
+import com.milkygreen.blockchain.core.TransactionOutput;
+import com.milkygreen.blockchain.util.AddressCache;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+
+/**
+ * 链状态数据库：持久化保存所有未花费输出，以及它们对应的最新区块
+ * 数据保存在{@link KVStore}中：
+ * 未花费输出：'c' | 交易hash(32字节) | 输出序号(4字节) -> 区块高度(4字节) | 金额(8字节) | 收款人公钥哈希(20字节)
+ * 最新区块：'B' -> 区块hash(32字节) | 区块高度(8字节)
+ * 花掉的输出、新增的输出和最新区块作为一批写入，崩溃之后链状态总是停在某个完整的区块上，
+ * 启动时直接加载未花费输出，不需要从创世区块开始重放。
+ */
+public class Chainstate implements UTXOBackingStore {
+
+    private static final byte COIN_PREFIX = 'c';
+
+    private static final byte[] COIN_PREFIX_KEY = {COIN_PREFIX};
+
+    private static final byte[] TIP_KEY = {'B'};
+
+    private static final int COIN_KEY_LENGTH = 1 + Hash256.LENGTH + 4;
+
+    private static final int COIN_VALUE_LENGTH = 4 + 8 + AddressCache.PUBLIC_KEY_HASH_LENGTH;
+
+    private final KVStore store;
+
+    public Chainstate(Path directory) {
+        this.store = new KVStore(directory);
+    }
+
+    /**
+     * 把一批未花费输出的修改和新的最新区块作为一批原子地写入
+     *
+     * @throws IllegalArgumentException 输出的收款地址不合法
+     */
+    @Override
+    public void batchWrite(Map<OutPoint, UTXOEntry> changes, Hash256 tipHash, long tipHeight) {
+        WriteBatch batch = new WriteBatch();
+        for (Map.Entry<OutPoint, UTXOEntry> change : changes.entrySet()) {
+            OutPoint outPoint = change.getKey();
+            UTXOEntry entry = change.getValue();
+            byte[] key = coinKey(outPoint.getTransactionHash(), outPoint.getIndex());
+            if (entry == null) {
+                batch.delete(key);
+                continue;
+            }
+            TransactionOutput output = entry.getOutput();
+            byte[] publicKeyHash = AddressCache.publicKeyHash(output.getAccount());
+            if (publicKeyHash == null) {
+                throw new IllegalArgumentException("非法的地址：" + output.getAccount());
+            }
+            ByteBuffer value = ByteBuffer.allocate(COIN_VALUE_LENGTH);
+            value.putInt((int) entry.getHeight());
+            value.putLong(output.getAmount());
+            value.put(publicKeyHash);
+            batch.put(key, value.array());
+        }
+        if (tipHash != null) {
+            ByteBuffer tip = ByteBuffer.allocate(Hash256.LENGTH + 8);
+            tipHash.writeTo(tip);
+            tip.putLong(tipHeight);
+            batch.put(TIP_KEY, tip.array());
+        }
+        store.write(batch);
+    }
+
+    @Override
+    public UTXOEntry getEntry(OutPoint outPoint) {
+        byte[] value = store.get(coinKey(outPoint.getTransactionHash(), outPoint.getIndex()));
+        if (value == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        long height = buffer.getInt() & 0xffffffffL;
+        TransactionOutput output = new TransactionOutput();
+        output.setTransactionHashValue(outPoint.getTransactionHash());
+        output.setIndex(outPoint.getIndex());
+        output.setAmount(buffer.getLong());
+        byte[] publicKeyHash = new byte[AddressCache.PUBLIC_KEY_HASH_LENGTH];
+        buffer.get(publicKeyHash);
+        output.setAccount(AddressCache.address(publicKeyHash));
+        return new UTXOEntry(output, height);
+    }
+
+    @Override
+    public Hash256 getTipHash() {
+        byte[] tip = store.get(TIP_KEY);
+        return tip == null ? null : Hash256.of(tip, 0);
+    }
+
+    @Override
+    public long getTipHeight() {
+        byte[] tip = store.get(TIP_KEY);
+        return tip == null ? -1 : ByteBuffer.wrap(tip).getLong(Hash256.LENGTH);
+    }
+
+    public Path getDirectory() {
+        return store.getDirectory();
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    private static byte[] coinKey(Hash256 transactionHash, int index) {
+        byte[] key = new byte[COIN_KEY_LENGTH];
+        key[0] = COIN_PREFIX;
+        transactionHash.writeTo(key, 1);
+        ByteBuffer.wrap(key).putInt(1 + Hash256.LENGTH, index);
+        return key;
+    }
+}
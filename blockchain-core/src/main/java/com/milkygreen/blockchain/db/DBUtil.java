@@ -1,53 +1,120 @@
 package com.milkygreen.blockchain.db;
 
 import com.milkygreen.blockchain.core.Block;
-import com.milkygreen.blockchain.core.Transaction;
-import com.milkygreen.blockchain.core.TransactionOutput;
-import com.milkygreen.blockchain.wallet.Account;
+import com.milkygreen.blockchain.core.BlockIndex;
+import com.milkygreen.blockchain.core.BlockTree;
+import com.milkygreen.blockchain.core.Hash256;
 
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
 
 /**
- * 持久化工具，用于保存区块链上的所以数据(目前仅保存在内存中，后续可以用一些kv数据库实现本地保存)
+ * 持久化工具，用于保存区块链上的所以数据
+ * 区块（包括分叉上的区块）保存在数据目录下的区块文件中，未花费输出经过写回缓存保存在链状态存储中，
+ * 撤销数据、交易索引和地址索引各自保存在{@link KVStore}中，区块树启动时根据区块文件重建
  */
 public class DBUtil {
 
+    /**
+     * 指定数据目录的系统属性，没有指定时使用一个临时目录，进程退出时删除
+     */
+    public static final String DATA_DIR_PROPERTY = "blockchain.dataDir";
+
+    /**
+     * 数据目录
+     */
+    public static final Path dataDirectory = initDataDirectory();
+
     /**
      * 区块链的最新高度
      */
-    public static long blockchainHeight = -1;
+    public static volatile long blockchainHeight = -1;
+
+    /**
+     * 区块文件，可以按hash或者高度查询区块
+     */
+    public static final BlockStore blockStore = new BlockStore(dataDirectory.resolve("blocks"));
+
+    /**
+     * 选择UTXO存储的系统属性，值为file时使用{@link FileUTXOStore}，否则使用{@link Chainstate}
+     */
+    public static final String UTXO_STORE_PROPERTY = "blockchain.utxoStore";
+
+    /**
+     * 指定UTXO缓存内存预算（字节）的系统属性
+     */
+    public static final String UTXO_CACHE_SIZE_PROPERTY = "blockchain.utxoCacheSize";
 
     /**
-     * hash-block 结构
+     * 链状态存储，持久化保存未花费输出和最新区块
      */
-    public static Map<String, Block> hashBlockDB = new ConcurrentHashMap<>();
+    public static final UTXOBackingStore chainstate = initUTXOStore();
 
     /**
-     * block的height-hash 结构
+     * 链状态存储前面的写回缓存，连接区块时先写到这里，超过内存预算之后再批量写入链状态存储
      */
-    public static Map<Long, String> HeightHashBlockDB = new ConcurrentHashMap<>();
+    public static final UTXOCache coinsCache = new UTXOCache(chainstate,
+            Long.getLong(UTXO_CACHE_SIZE_PROPERTY, UTXOCache.DEFAULT_MEMORY_BUDGET));
 
     /**
-     * hash-transaction结构
+     * 区块树，记录所有已保存的区块（包括分叉）和它们的累计工作量
      */
-    public static Map<String, Transaction> hashTransactionDB = new ConcurrentHashMap<>();
+    public static final BlockTree blockTree = new BlockTree();
 
     /**
-     * 未花费输出,代表一个账户的「余额」
-     * 地址-transactionOutput
+     * 区块树节点的状态，重启之后不再连接已知校验失败的区块
      */
-    public static final Map<String, Set<TransactionOutput>> UTXO = new ConcurrentHashMap<>();
+    public static final BlockIndexStore blockIndexStore = new BlockIndexStore(dataDirectory.resolve("blockindex"));
+
+    /**
+     * 区块的撤销数据，断开区块时用来恢复被花掉的输出
+     */
+    public static final UndoStore undoStore = new UndoStore(dataDirectory.resolve("undo"));
+
+    /**
+     * 开启地址交易历史索引的系统属性，值为true时开启
+     */
+    public static final String ADDRESS_INDEX_PROPERTY = "blockchain.addressIndex";
+
+    /**
+     * 地址交易历史索引，没有开启时为null
+     */
+    public static final AddressIndex addressIndex = Boolean.getBoolean(ADDRESS_INDEX_PROPERTY)
+            ? new AddressIndex(dataDirectory.resolve("addrindex")) : null;
+
+    /**
+     * 主链交易索引，交易hash-(区块高度, 位置)，交易本身从区块文件中读取
+     */
+    public static final TransactionIndex transactionIndex = new TransactionIndex(dataDirectory.resolve("txindex"), blockStore);
+
+    /**
+     * 钱包的地址索引，保存钱包关注的地址的未花费输出，代表一个账户的「余额」
+     * 校验交易、撤销数据等按输出点的查询都经过{@link #coinsCache}，这里不是链状态的完整副本
+     */
+    public static final UTXOSet UTXO = new UTXOSet();
 
     /**
      * 未确认交易
      * 区块链网络中发生的交易，还没有被打包进任何一个区块，暂时放在这里，等矿工来取
      */
-    public static Map<String, Transaction> unConfirmTransactionPool = new ConcurrentHashMap<>();
+    public static final TransactionPool unConfirmTransactionPool = new TransactionPool();
 
+    static {
+        loadChain();
+        if (System.getProperty(DATA_DIR_PROPERTY) != null) {
+            // 正常退出时把缓存写回，下次启动不用再重新连接这些区块
+            Runtime.getRuntime().addShutdownHook(new Thread(coinsCache::flush));
+        }
+    }
 
-    public synchronized static Map<String, Set<TransactionOutput>> getUTXO(){
+    public static UTXOSet getUTXO(){
         return UTXO;
     }
 
@@ -57,13 +124,111 @@ public class DBUtil {
      * @return 区块
      */
     public static Block getTailBlock() {
-        String hash = HeightHashBlockDB.get(blockchainHeight);
-        if(hash == null){
-            return null;
+        return blockStore.getBlock(blockchainHeight);
+    }
+
+    /**
+     * 用区块文件中的区块头重建区块树并标记校验失败的区块，再沿着链状态的最新区块向上重建主链索引，然后把交易索引和地址索引对齐到主链
+     * 未花费输出不加载到内存，查询时经过{@link #coinsCache}按需读取链状态存储。
+     * 区块先写入区块文件，对UTXO的修改攒够一批才写入链状态，进程崩溃时区块文件中会有比链状态更新的区块，
+     * 它们由{@link com.milkygreen.blockchain.core.Blockchain}在启动时重新连接。
+     */
+    private static void loadChain() {
+        // 父区块的高度总是更小，按高度排序之后依次加入
+        List<Block> headers = new ArrayList<>();
+        blockStore.forEachHeader(headers::add);
+        headers.sort(Comparator.comparingLong(Block::getHeight));
+        for (Block header : headers) {
+            try {
+                blockTree.add(header);
+            } catch (IllegalArgumentException e) {
+                System.out.println("区块文件中的区块无法加入区块树：" + e.getMessage());
+            }
+        }
+        blockIndexStore.forEachFailed(hash -> {
+            BlockIndex index = blockTree.get(hash);
+            if (index != null) {
+                blockTree.markFailed(index);
+            }
+        });
+
+        Hash256 tipHash = chainstate.getTipHash();
+        if (tipHash != null) {
+            BlockIndex tip = blockTree.get(tipHash);
+            if (tip == null) {
+                throw new IllegalStateException("链状态的最新区块" + tipHash + "不在区块文件中");
+            }
+            for (BlockIndex index = tip; index != null; index = index.getParent()) {
+                blockStore.setMainChainBlock(index.getHeight(), index.getHash());
+            }
+            blockTree.setTip(tip);
+            blockchainHeight = tip.getHeight();
+            System.out.println("链状态存储的最新高度：" + tip.getHeight());
+        }
+
+        syncIndex(transactionIndex, "交易索引");
+        if (addressIndex != null) {
+            syncIndex(addressIndex, "地址索引");
+        }
+        if (blockTree.size() > 0) {
+            System.out.println("从区块文件中恢复了" + blockTree.size() + "个区块！");
+        }
+    }
+
+    /**
+     * 把索引对齐到主链的最新区块：先断开索引中不在主链上的区块，再补上索引缺少的区块
+     * 索引和链状态分别写入，进程崩溃之后两者的最新区块可能不同；第一次建立索引时从创世区块开始。
+     */
+    private static void syncIndex(ChainIndex chainIndex, String name) {
+        Hash256 indexTipHash = chainIndex.getTipHash();
+        BlockIndex indexTip = null;
+        if (indexTipHash != null) {
+            indexTip = blockTree.get(indexTipHash);
+            if (indexTip == null) {
+                throw new IllegalStateException(name + "的最新区块" + indexTipHash + "不在区块文件中");
+            }
+        }
+        BlockIndex fork = BlockTree.findFork(indexTip, blockTree.getTip());
+        for (BlockIndex index = indexTip; index != fork; index = index.getParent()) {
+            chainIndex.disconnectBlock(blockStore.getBlock(index.getHash()));
+        }
+        long from = fork == null ? 0 : fork.getHeight() + 1;
+        for (long height = from; height <= blockchainHeight; height++) {
+            chainIndex.connectBlock(blockStore.getBlock(height));
+        }
+        if (from <= blockchainHeight) {
+            System.out.println(name + "补上了" + (blockchainHeight - from + 1) + "个区块！");
+        }
+    }
+
+    private static UTXOBackingStore initUTXOStore() {
+        Path directory = dataDirectory.resolve("chainstate");
+        if ("file".equals(System.getProperty(UTXO_STORE_PROPERTY))) {
+            return new FileUTXOStore(directory);
         }
-        Block block = hashBlockDB.get(hash);
-        return block;
+        return new Chainstate(directory);
     }
 
+    private static Path initDataDirectory() {
+        String dataDir = System.getProperty(DATA_DIR_PROPERTY);
+        try {
+            if (dataDir != null) {
+                return Files.createDirectories(Paths.get(dataDir));
+            }
+            Path directory = Files.createTempDirectory("blockchain");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(directory)));
+            return directory;
+        } catch (IOException e) {
+            throw new UncheckedIOException("创建数据目录失败", e);
+        }
+    }
+
+    private static void delete(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            // 临时目录删除失败不影响退出
+        }
+    }
 
 }
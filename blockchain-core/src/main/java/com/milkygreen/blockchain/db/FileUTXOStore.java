@@ -0,0 +1,164 @@
+package com.milkygreen.blockchain.db;
+
+import com.milkygreen.blockchain.core.Hash256;
+import com.milkygreen.blockchain.core.OutPoint;
+import com.milkygreen.blockchain.core.TransactionOutput;
+import com.milkygreen.blockchain.util.AddressCache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 最简单的文件存储：所有未花费输出都保存在内存中，每次批量写入之后把整个集合重新写成一个快照文件
+ * 快照先写临时文件再改名，所以文件总是某一次批量写入之后的完整状态。
+ * 每次写入的代价与集合大小成正比，适合数据量不大的场景，前面的{@link UTXOCache}会把很多区块合并成一次写入。
+ * 文件格式：魔数(4字节) | 最新区块高度(8字节) | 最新区块hash(32字节) | 数量(4字节) | 未花费输出 | CRC32(4字节)，
+ * 每个未花费输出是 交易hash(32字节) | 输出序号(4字节) | 区块高度(4字节) | 金额(8字节) | 收款人公钥哈希(20字节)。
+ */
+public class FileUTXOStore implements UTXOBackingStore {
+
+    private static final int MAGIC = 0x55545831;
+
+    private static final String FILE_NAME = "utxo.dat";
+
+    private static final int HEADER_LENGTH = 4 + 8 + Hash256.LENGTH + 4;
+
+    private static final int ENTRY_LENGTH = Hash256.LENGTH + 4 + 4 + 8 + AddressCache.PUBLIC_KEY_HASH_LENGTH;
+
+    private final Path file;
+
+    private final Map<OutPoint, UTXOEntry> entries = new HashMap<>();
+
+    private Hash256 tipHash;
+
+    private long tipHeight = -1;
+
+    /**
+     * 打开目录下的快照文件，目录不存在时创建
+     */
+    public FileUTXOStore(Path directory) {
+        this.file = directory.resolve(FILE_NAME);
+        try {
+            Files.createDirectories(directory);
+            if (Files.exists(file)) {
+                read();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("打开UTXO文件失败：" + file, e);
+        }
+    }
+
+    @Override
+    public synchronized UTXOEntry getEntry(OutPoint outPoint) {
+        return entries.get(outPoint);
+    }
+
+    @Override
+    public synchronized Hash256 getTipHash() {
+        return tipHash;
+    }
+
+    @Override
+    public synchronized long getTipHeight() {
+        return tipHeight;
+    }
+
+    @Override
+    public synchronized void batchWrite(Map<OutPoint, UTXOEntry> changes, Hash256 tipHash, long tipHeight) {
+        for (Map.Entry<OutPoint, UTXOEntry> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                entries.remove(change.getKey());
+            } else {
+                entries.put(change.getKey(), change.getValue());
+            }
+        }
+        if (tipHash != null) {
+            this.tipHash = tipHash;
+            this.tipHeight = tipHeight;
+        }
+        try {
+            write();
+        } catch (IOException e) {
+            throw new UncheckedIOException("写UTXO文件失败：" + file, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        // 每次写入都已经写完整个文件，没有需要释放的资源
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        int length = buffer.capacity();
+        if (length < HEADER_LENGTH + 4 || buffer.getInt(0) != MAGIC
+                || buffer.getInt(length - 4) != crc(buffer.array(), length - 4)) {
+            throw new IOException("UTXO文件已损坏：" + file);
+        }
+        buffer.getInt();
+        tipHeight = buffer.getLong();
+        Hash256 hash = Hash256.read(buffer);
+        tipHash = tipHeight < 0 ? null : hash;
+        int count = buffer.getInt();
+        if (count < 0 || (long) count * ENTRY_LENGTH != length - 4 - HEADER_LENGTH) {
+            throw new IOException("UTXO文件已损坏：" + file);
+        }
+        byte[] publicKeyHash = new byte[AddressCache.PUBLIC_KEY_HASH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            TransactionOutput output = new TransactionOutput();
+            output.setTransactionHashValue(Hash256.read(buffer));
+            output.setIndex(buffer.getInt());
+            long height = buffer.getInt() & 0xffffffffL;
+            output.setAmount(buffer.getLong());
+            buffer.get(publicKeyHash);
+            output.setAccount(AddressCache.address(publicKeyHash));
+            entries.put(OutPoint.of(output), new UTXOEntry(output, height));
+        }
+    }
+
+    private void write() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + entries.size() * ENTRY_LENGTH + 4);
+        buffer.putInt(MAGIC);
+        buffer.putLong(tipHeight);
+        (tipHash == null ? Hash256.ZERO : tipHash).writeTo(buffer);
+        buffer.putInt(entries.size());
+        for (UTXOEntry entry : entries.values()) {
+            TransactionOutput output = entry.getOutput();
+            byte[] publicKeyHash = AddressCache.publicKeyHash(output.getAccount());
+            if (publicKeyHash == null) {
+                throw new IllegalArgumentException("非法的地址：" + output.getAccount());
+            }
+            output.getTransactionHashValue().writeTo(buffer);
+            buffer.putInt(output.getIndex());
+            buffer.putInt((int) entry.getHeight());
+            buffer.putLong(output.getAmount());
+            buffer.put(publicKeyHash);
+        }
+        buffer.putInt(crc(buffer.array(), buffer.position()));
+        Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer content = ByteBuffer.wrap(buffer.array());
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static int crc(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+}
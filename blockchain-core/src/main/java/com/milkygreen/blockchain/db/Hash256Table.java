@@ -0,0 +1,179 @@
+package com.milkygreen.blockchain.db;
+
+import com.milkygreen.blockchain.core.Hash256;
+
+import java.util.Arrays;
+
+/**
+ * 以(hash, 序号)为key、一个long为值的哈希表，不为条目创建任何对象
+ * 条目按列保存在基本类型数组中：hash占4个long，序号占1个int，值占1个long，下标就是条目编号，
+ * 数组是紧凑的，删除时用最后一个条目填补空位，使用者可以用同样的编号在自己的数组中保存其他列。
+ * 按key查找用一个int数组做开放寻址哈希表（线性探测，装载因子不超过1/2），里面保存条目编号加1，0表示空槽位，
+ * 删除时把后面的元素前移，不留墓碑。
+ * {@link UTXOSet}用它按输出点查找。
+ * 不是线程安全的，由使用者加锁。
+ */
+final class Hash256Table {
+
+    private long[] hashes;
+
+    private int[] indexes;
+
+    private long[] values;
+
+    private int size;
+
+    private int[] table;
+
+    private int mask;
+
+    Hash256Table(int capacity) {
+        hashes = new long[capacity * 4];
+        indexes = new int[capacity];
+        values = new long[capacity];
+        table = new int[Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) * 2];
+        mask = table.length - 1;
+    }
+
+    /**
+     * 查找key对应的条目编号
+     *
+     * @return 不存在时返回-1
+     */
+    int find(Hash256 hash, int index) {
+        int slot = findSlot(hash, index);
+        return slot < 0 ? -1 : table[slot] - 1;
+    }
+
+    /**
+     * 新增一个条目，调用者要保证key不存在
+     *
+     * @return 新条目的编号，总是等于新增之前的条目数量
+     */
+    int add(Hash256 hash, int index, long value) {
+        if (size == values.length) {
+            int capacity = size + (size >> 1) + 1;
+            hashes = Arrays.copyOf(hashes, capacity * 4);
+            indexes = Arrays.copyOf(indexes, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        if (size + 1 > table.length / 2) {
+            resizeTable(table.length * 2);
+        }
+        int e = size++;
+        for (int i = 0; i < 4; i++) {
+            hashes[e * 4 + i] = hash.word(i);
+        }
+        indexes[e] = index;
+        values[e] = value;
+        int slot = slotOf(e);
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = e + 1;
+        return e;
+    }
+
+    /**
+     * 删除编号为e的条目，并用最后一个条目填补空位
+     *
+     * @return 被移到e的条目原来的编号，e本身就是最后一个条目时返回-1
+     */
+    int remove(int e) {
+        int slot = slotOf(e);
+        while (table[slot] != e + 1) {
+            slot = (slot + 1) & mask;
+        }
+        deleteSlot(slot);
+        int last = --size;
+        if (e == last) {
+            return -1;
+        }
+        slot = slotOf(last);
+        while (table[slot] != last + 1) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = e + 1;
+        System.arraycopy(hashes, last * 4, hashes, e * 4, 4);
+        indexes[e] = indexes[last];
+        values[e] = values[last];
+        return last;
+    }
+
+    Hash256 getHash(int e) {
+        return Hash256.of(hashes[e * 4], hashes[e * 4 + 1], hashes[e * 4 + 2], hashes[e * 4 + 3]);
+    }
+
+    int getIndex(int e) {
+        return indexes[e];
+    }
+
+    long getValue(int e) {
+        return values[e];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * 不扩容最多能保存的条目数量，使用者的列数组按这个大小分配
+     */
+    int capacity() {
+        return values.length;
+    }
+
+    private int findSlot(Hash256 hash, int index) {
+        long w0 = hash.word(0);
+        long w1 = hash.word(1);
+        long w2 = hash.word(2);
+        long w3 = hash.word(3);
+        for (int slot = slot(w0, index); ; slot = (slot + 1) & mask) {
+            int e = table[slot] - 1;
+            if (e < 0) {
+                return -1;
+            }
+            if (hashes[e * 4] == w0 && hashes[e * 4 + 1] == w1 && hashes[e * 4 + 2] == w2
+                    && hashes[e * 4 + 3] == w3 && indexes[e] == index) {
+                return slot;
+            }
+        }
+    }
+
+    private int slot(long w0, int index) {
+        // hash已经是均匀分布的，只需要把序号混进去
+        long h = w0 ^ (index * 0x9E3779B97F4A7C15L);
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int slotOf(int e) {
+        return slot(hashes[e * 4], indexes[e]);
+    }
+
+    /**
+     * 删除槽位，并把后面探测距离不够的元素依次前移，这样查找遇到空槽位就可以停止
+     */
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        for (int s = (slot + 1) & mask; table[s] != 0; s = (s + 1) & mask) {
+            int ideal = slotOf(table[s] - 1);
+            if (((s - ideal) & mask) >= ((s - hole) & mask)) {
+                table[hole] = table[s];
+                hole = s;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private void resizeTable(int capacity) {
+        table = new int[capacity];
+        mask = capacity - 1;
+        for (int e = 0; e < size; e++) {
+            int slot = slotOf(e);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = e + 1;
+        }
+    }
+}
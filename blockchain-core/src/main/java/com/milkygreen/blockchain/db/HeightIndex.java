@@ -0,0 +1,182 @@
+package com.milkygreen.blockchain.db;
+
+import com.milkygreen.blockchain.core.Hash256;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 主链高度索引：高度-区块hash
+ * 高度是从0开始连续增长的，所以不需要哈希表，区块hash按高度顺序放在一个long数组中，每个高度占4个long，
+ * 按高度查询就是数组下标计算，不需要把高度装箱成Long，也不需要计算哈希；按高度范围扫描就是顺序读一段连续的内存。
+ * 全0表示这个高度上没有区块（启动时从最新区块向下重建，中间会暂时有空位）。
+ * 读操作使用{@link StampedLock}的乐观读，不加锁，读完之后校验期间没有写入，有写入时才加读锁重读。
+ * 写操作只发生在连接、断开区块时，加写锁，读最新区块这样的高频操作几乎不会遇到。
+ */
+class HeightIndex {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * 每个高度4个long，长度总是4的倍数
+     */
+    private long[] words = new long[INITIAL_CAPACITY * 4];
+
+    /**
+     * 最大高度加1，没有区块时为0
+     */
+    private int size;
+
+    /**
+     * 把指定高度设为区块hash
+     *
+     * @throws IllegalArgumentException 高度超出范围，或者hash为null
+     */
+    void set(long height, Hash256 hash) {
+        if (height < 0 || height >= Integer.MAX_VALUE / 4) {
+            throw new IllegalArgumentException("高度超出范围：" + height);
+        }
+        if (hash == null) {
+            throw new IllegalArgumentException("区块hash不能为null");
+        }
+        int h = (int) height;
+        long stamp = lock.writeLock();
+        try {
+            if (h * 4 >= words.length) {
+                words = Arrays.copyOf(words, Math.max(words.length * 2, (h + 1) * 4));
+            }
+            for (int i = 0; i < 4; i++) {
+                words[h * 4 + i] = hash.word(i);
+            }
+            if (h >= size) {
+                size = h + 1;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 删除指定高度的区块hash，删除的是最大高度时，最大高度减一
+     */
+    void remove(long height) {
+        long stamp = lock.writeLock();
+        try {
+            if (height < 0 || height >= size) {
+                return;
+            }
+            int h = (int) height;
+            Arrays.fill(words, h * 4, h * 4 + 4, 0L);
+            if (h == size - 1) {
+                size = h;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 指定高度的区块hash
+     *
+     * @return 没有时返回null
+     */
+    Hash256 get(long height) {
+        if (height < 0 || height >= Integer.MAX_VALUE / 4) {
+            return null;
+        }
+        int h = (int) height;
+        long stamp = lock.tryOptimisticRead();
+        Hash256 hash = read(h);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                hash = read(h);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * 高度在[from, to]之间的区块hash，按高度顺序，没有区块的高度为null
+     *
+     * @return 超出最大高度的部分不返回
+     */
+    Hash256[] get(long from, long to) {
+        long stamp = lock.tryOptimisticRead();
+        Hash256[] hashes = read(from, to);
+        if (hashes == null || !lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                hashes = read(from, to);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * 最大高度，没有区块时返回-1
+     */
+    long getMaxHeight() {
+        long stamp = lock.tryOptimisticRead();
+        int maxHeight = size - 1;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                maxHeight = size - 1;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return maxHeight;
+    }
+
+    /**
+     * 读取一个高度，乐观读期间数组可能被替换，越界时当作没有
+     */
+    private Hash256 read(int h) {
+        long[] words = this.words;
+        if (h >= size || h * 4 + 3 >= words.length) {
+            return null;
+        }
+        return toHash(words, h * 4);
+    }
+
+    /**
+     * 读取一段高度，乐观读期间数组被替换导致越界时返回null，由调用方加锁重读
+     */
+    private Hash256[] read(long from, long to) {
+        long[] words = this.words;
+        long last = Math.min(to, size - 1L);
+        long first = Math.max(from, 0);
+        if (last < first) {
+            return new Hash256[0];
+        }
+        int start = (int) first;
+        int end = (int) last;
+        if (end * 4 + 3 >= words.length) {
+            return null;
+        }
+        Hash256[] hashes = new Hash256[end - start + 1];
+        for (int h = start; h <= end; h++) {
+            hashes[h - start] = toHash(words, h * 4);
+        }
+        return hashes;
+    }
+
+    private static Hash256 toHash(long[] words, int offset) {
+        long w0 = words[offset];
+        long w1 = words[offset + 1];
+        long w2 = words[offset + 2];
+        long w3 = words[offset + 3];
+        if ((w0 | w1 | w2 | w3) == 0) {
+            return null;
+        }
+        return Hash256.of(w0, w1, w2, w3);
+    }
+}
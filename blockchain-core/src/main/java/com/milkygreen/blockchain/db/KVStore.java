@@ -0,0 +1,747 @@
+package com.milkygreen.blockchain.db;
+
+import com.google.common.primitives.UnsignedBytes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.zip.CRC32;
+
+/**
+ * 基于日志结构合并树(LSM)的键值数据库，key和value都是字节数组，key按无符号字节的字典序排列
+ * 写入：每批写操作先作为一条记录追加到预写日志(wal-N.log)，再写入内存表(跳表)。
+ * 内存表超过大小限制之后冻结，由后台线程写成一个不可变的有序段文件({@link SSTable})，写完之后删除对应的预写日志。
+ * 段文件数量达到阈值之后，后台线程把所有段文件合并成一个，同一个key只保留最新的值，删除标记也一并丢掉。
+ * 当前有哪些段文件、新旧顺序如何，记录在MANIFEST文件中，MANIFEST先写临时文件再改名，所以总是完整的。
+ * 读取：依次查内存表、冻结的内存表、从新到旧的段文件，段文件先用布隆过滤器排除不存在的key。
+ * 启动时打开MANIFEST中的段文件，删除其他残留文件，再重放剩下的预写日志。日志末尾校验和不对的记录是崩溃时写了一半的，
+ * 连同之后的内容一起丢弃，所以每一批写操作要么全部恢复，要么全部丢弃。重放得到的数据立即写成段文件，旧日志随后删除。
+ * 写操作串行执行，读操作不加锁。读操作可能看到一批写操作中的一部分，批的原子性只针对崩溃恢复。
+ */
+public class KVStore implements Closeable {
+
+    /**
+     * 默认的内存表大小：4MB
+     */
+    public static final long DEFAULT_MEM_TABLE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * 默认的合并阈值：段文件数量达到这个值时合并
+     */
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+
+    /**
+     * 内存表和段文件中的删除标记，按引用比较
+     */
+    static final byte[] TOMBSTONE = new byte[0];
+
+    private static final Comparator<byte[]> KEY_COMPARATOR = UnsignedBytes.lexicographicalComparator();
+
+    /**
+     * 预写日志记录头长度：长度、CRC32
+     */
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    /**
+     * 内存表中每个条目除key、value之外的大致开销
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final String MANIFEST = "MANIFEST";
+
+    private static final String WAL_PREFIX = "wal-";
+
+    private static final String WAL_SUFFIX = ".log";
+
+    private static final String TABLE_PREFIX = "sst-";
+
+    private static final String TABLE_SUFFIX = ".dat";
+
+    private final Path directory;
+
+    private final long memTableSize;
+
+    private final int compactionThreshold;
+
+    private final boolean sync;
+
+    /**
+     * 当前的内存表、冻结的内存表和段文件，整体替换，读操作取一次快照即可
+     */
+    private volatile State state;
+
+    /**
+     * 写入是在矿工线程里做的，矿工被中断时普通的FileChannel会被关闭，这里用能重新打开的通道
+     */
+    private ReopeningChannel wal;
+
+    /**
+     * 预写日志的长度，记录按位置写入，写入成功之后才前进，失败的记录会被下一条记录覆盖
+     */
+    private long walPosition;
+
+    private long walNumber;
+
+    private long nextFileNumber;
+
+    private boolean closed;
+
+    /**
+     * 后台线程写段文件或者合并时发生的错误，之后的写操作都会失败
+     */
+    private volatile IOException backgroundError;
+
+    private final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kvstore-background");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 内存表
+     */
+    private static class MemTable {
+
+        final ConcurrentSkipListMap<byte[], byte[]> map = new ConcurrentSkipListMap<>(KEY_COMPARATOR);
+
+        /**
+         * 大致占用的内存
+         */
+        volatile long bytes;
+
+        /**
+         * 对应的预写日志编号
+         */
+        final long walNumber;
+
+        MemTable(long walNumber) {
+            this.walNumber = walNumber;
+        }
+    }
+
+    private static class State {
+
+        final MemTable memTable;
+
+        /**
+         * 冻结之后等待写成段文件的内存表，没有时为null
+         */
+        final MemTable immutable;
+
+        /**
+         * 段文件，从新到旧
+         */
+        final List<SSTable> tables;
+
+        State(MemTable memTable, MemTable immutable, List<SSTable> tables) {
+            this.memTable = memTable;
+            this.immutable = immutable;
+            this.tables = Collections.unmodifiableList(tables);
+        }
+    }
+
+    public KVStore(Path directory) {
+        this(directory, DEFAULT_MEM_TABLE_SIZE, DEFAULT_COMPACTION_THRESHOLD, true);
+    }
+
+    /**
+     * 打开目录下的数据库，目录不存在时创建
+     *
+     * @param directory           存放数据文件的目录
+     * @param memTableSize        内存表的大小限制
+     * @param compactionThreshold 段文件数量达到这个值时合并
+     * @param sync                每批写操作之后是否强制把预写日志写入磁盘，不强制时进程崩溃不丢数据，但是断电可能丢失最后几批
+     */
+    public KVStore(Path directory, long memTableSize, int compactionThreshold, boolean sync) {
+        if (memTableSize <= 0 || compactionThreshold < 2) {
+            throw new IllegalArgumentException("内存表大小必须大于0，合并阈值不能小于2");
+        }
+        this.directory = directory;
+        this.memTableSize = memTableSize;
+        this.compactionThreshold = compactionThreshold;
+        this.sync = sync;
+        try {
+            Files.createDirectories(directory);
+            open();
+        } catch (IOException e) {
+            background.shutdownNow();
+            throw new UncheckedIOException("打开数据库失败：" + directory, e);
+        }
+    }
+
+    /**
+     * 查询key
+     *
+     * @return 不存在时返回null
+     */
+    public byte[] get(byte[] key) {
+        State state = this.state;
+        byte[] value = state.memTable.map.get(key);
+        if (value == null && state.immutable != null) {
+            value = state.immutable.map.get(key);
+        }
+        for (int i = 0; value == null && i < state.tables.size(); i++) {
+            value = state.tables.get(i).get(key);
+        }
+        return value == TOMBSTONE ? null : value;
+    }
+
+    public void put(byte[] key, byte[] value) {
+        write(new WriteBatch().put(key, value));
+    }
+
+    public void delete(byte[] key) {
+        write(new WriteBatch().delete(key));
+    }
+
+    /**
+     * 原子地执行一批写操作
+     * 返回之后数据已经写入预写日志，打开了sync时也已经写入磁盘。
+     */
+    public synchronized void write(WriteBatch batch) {
+        checkWritable();
+        if (batch.isEmpty()) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + batch.encodedSize());
+        ((Buffer) record).position(RECORD_HEADER_LENGTH);
+        batch.writeTo(record);
+        record.putInt(0, batch.encodedSize());
+        record.putInt(4, crc(record.array(), RECORD_HEADER_LENGTH, batch.encodedSize()));
+        ((Buffer) record).flip();
+        try {
+            wal.write(record, walPosition);
+            if (sync) {
+                wal.force(false);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("写预写日志失败", e);
+        }
+        walPosition += record.limit();
+        MemTable memTable = state.memTable;
+        apply(memTable, batch);
+        if (memTable.bytes >= memTableSize) {
+            freeze();
+        }
+    }
+
+    /**
+     * 按key的顺序遍历以prefix开头的所有条目
+     * 遍历的是调用时的快照，遍历过程中的写操作可能看得到，也可能看不到。
+     */
+    public void scan(byte[] prefix, BiConsumer<byte[], byte[]> consumer) {
+        scan(prefix, prefix, (key, value) -> {
+            consumer.accept(key, value);
+            return true;
+        });
+    }
+
+    /**
+     * 从start开始按key的顺序遍历以prefix开头的条目，visitor返回false时停止
+     * 每个数据源都是先二分查找到start再顺序读，所以分页查询的代价是O(log n + 页大小)，与前面跳过的条目数量无关。
+     *
+     * @param start 起始key（包含），不能小于prefix
+     */
+    public void scan(byte[] prefix, byte[] start, BiPredicate<byte[], byte[]> visitor) {
+        State state = this.state;
+        List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<>();
+        sources.add(state.memTable.map.tailMap(start).entrySet().iterator());
+        if (state.immutable != null) {
+            sources.add(state.immutable.map.tailMap(start).entrySet().iterator());
+        }
+        for (SSTable table : state.tables) {
+            sources.add(table.iterator(start));
+        }
+        Iterator<Map.Entry<byte[], byte[]>> iterator = new MergingIterator(sources);
+        while (iterator.hasNext()) {
+            Map.Entry<byte[], byte[]> entry = iterator.next();
+            if (!startsWith(entry.getKey(), prefix) || !visitor.test(entry.getKey(), entry.getValue())) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 把内存表写成段文件，并等待后台的写入和合并完成
+     */
+    public void flush() {
+        synchronized (this) {
+            checkWritable();
+            if (!state.memTable.map.isEmpty()) {
+                freeze();
+            }
+        }
+        awaitBackground();
+    }
+
+    /**
+     * 把所有段文件合并成一个，并等待合并完成
+     */
+    public void compact() {
+        synchronized (this) {
+            checkWritable();
+        }
+        background.submit(() -> compact(2));
+        awaitBackground();
+    }
+
+    /**
+     * 当前的段文件数量
+     */
+    public int tableCount() {
+        return state.tables.size();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 等待后台任务完成，然后关闭预写日志，之后不能再使用
+     * 内存表中的数据已经在预写日志中，下次打开时恢复。
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                wal.close();
+            } catch (IOException e) {
+                // 关闭失败不影响已经写入的数据
+            }
+        }
+    }
+
+    /**
+     * 打开段文件，重放预写日志
+     */
+    private void open() throws IOException {
+        List<Long> tableNumbers = readManifest();
+        List<Long> walNumbers = new ArrayList<>();
+        long maxNumber = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(file);
+                    continue;
+                }
+                long number = fileNumber(name, TABLE_PREFIX, TABLE_SUFFIX);
+                if (number >= 0 && !tableNumbers.contains(number)) {
+                    // 合并之后还没来得及删除的旧段文件，或者没来得及记入MANIFEST的新段文件，数据都还在别处
+                    Files.delete(file);
+                    continue;
+                }
+                long wal = fileNumber(name, WAL_PREFIX, WAL_SUFFIX);
+                if (wal >= 0) {
+                    walNumbers.add(wal);
+                }
+                maxNumber = Math.max(maxNumber, Math.max(number, wal));
+            }
+        }
+        for (long number : tableNumbers) {
+            maxNumber = Math.max(maxNumber, number);
+        }
+        nextFileNumber = maxNumber + 1;
+
+        List<SSTable> tables = new ArrayList<>();
+        for (long number : tableNumbers) {
+            tables.add(SSTable.open(tablePath(number), number));
+        }
+
+        Collections.sort(walNumbers);
+        MemTable recovered = new MemTable(-1);
+        for (long number : walNumbers) {
+            replay(walPath(number), recovered);
+        }
+        if (!recovered.map.isEmpty()) {
+            long number = nextFileNumber++;
+            tables.add(0, SSTable.write(tablePath(number), number, recovered.map.entrySet().iterator(), recovered.map.size()));
+            writeManifest(tables);
+        }
+        for (long number : walNumbers) {
+            Files.delete(walPath(number));
+        }
+
+        walNumber = nextFileNumber++;
+        wal = openWal(walNumber);
+        state = new State(new MemTable(walNumber), null, tables);
+        if (tables.size() >= compactionThreshold) {
+            background.submit(() -> compact(compactionThreshold));
+        }
+    }
+
+    /**
+     * 把预写日志中完整的记录写入内存表，遇到不完整的记录就停止
+     */
+    private static void replay(Path path, MemTable memTable) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (length < 4 || length > buffer.remaining()
+                    || crc != crc(buffer.array(), buffer.position(), length)) {
+                break;
+            }
+            ByteBuffer payload = buffer.slice();
+            ((Buffer) payload).limit(length);
+            WriteBatch batch;
+            try {
+                batch = WriteBatch.read(payload);
+            } catch (RuntimeException e) {
+                break;
+            }
+            apply(memTable, batch);
+            ((Buffer) buffer).position(buffer.position() + length);
+        }
+    }
+
+    private static void apply(MemTable memTable, WriteBatch batch) {
+        long bytes = memTable.bytes;
+        for (int i = 0; i < batch.size(); i++) {
+            byte[] key = batch.key(i);
+            byte[] value = batch.value(i);
+            memTable.map.put(key, value == null ? TOMBSTONE : value);
+            bytes += ENTRY_OVERHEAD + key.length + (value == null ? 0 : value.length);
+        }
+        memTable.bytes = bytes;
+    }
+
+    /**
+     * 冻结当前内存表，切换到新的预写日志，交给后台线程写成段文件
+     * 上一个冻结的内存表还没有写完时等待，避免内存无限增长。
+     */
+    private void freeze() {
+        // 这批写操作已经生效，等待时被中断也不能放弃，等完之后再恢复中断标记
+        boolean interrupted = false;
+        while (state.immutable != null && backgroundError == null && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkWritable();
+        ReopeningChannel newWal;
+        long newWalNumber = nextFileNumber++;
+        try {
+            newWal = openWal(newWalNumber);
+            wal.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("创建预写日志失败", e);
+        }
+        wal = newWal;
+        walPosition = 0;
+        walNumber = newWalNumber;
+        state = new State(new MemTable(newWalNumber), state.memTable, state.tables);
+        background.submit(this::flushImmutable);
+    }
+
+    /**
+     * 后台线程：把冻结的内存表写成段文件
+     */
+    private void flushImmutable() {
+        MemTable immutable = state.immutable;
+        if (immutable == null) {
+            return;
+        }
+        try {
+            long number;
+            synchronized (this) {
+                number = nextFileNumber++;
+            }
+            SSTable table = SSTable.write(tablePath(number), number,
+                    immutable.map.entrySet().iterator(), immutable.map.size());
+            synchronized (this) {
+                List<SSTable> tables = new ArrayList<>();
+                tables.add(table);
+                tables.addAll(state.tables);
+                writeManifest(tables);
+                state = new State(state.memTable, null, tables);
+                Files.deleteIfExists(walPath(immutable.walNumber));
+                notifyAll();
+            }
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        compact(compactionThreshold);
+    }
+
+    /**
+     * 后台线程：段文件数量达到threshold时合并所有段文件
+     * 合并的是全部段文件，所以删除标记可以丢掉。合并期间新写成的段文件更新，排在合并结果之前。
+     */
+    private void compact(int threshold) {
+        List<SSTable> inputs = state.tables;
+        if (inputs.size() < threshold || backgroundError != null) {
+            return;
+        }
+        try {
+            long number;
+            synchronized (this) {
+                number = nextFileNumber++;
+            }
+            List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<>();
+            int expectedEntries = 0;
+            for (SSTable table : inputs) {
+                sources.add(table.iterator(null));
+                expectedEntries += table.getEntryCount();
+            }
+            SSTable merged = SSTable.write(tablePath(number), number,
+                    new MergingIterator(sources), expectedEntries);
+            synchronized (this) {
+                List<SSTable> current = state.tables;
+                List<SSTable> tables = new ArrayList<>(current.subList(0, current.size() - inputs.size()));
+                tables.add(merged);
+                writeManifest(tables);
+                state = new State(state.memTable, state.immutable, tables);
+            }
+            // 正在读旧段文件的线程不受影响，映射区域在文件删除之后仍然有效
+            for (SSTable table : inputs) {
+                Files.deleteIfExists(table.getPath());
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void fail(IOException e) {
+        backgroundError = e;
+        notifyAll();
+        System.out.println("数据库后台任务失败：" + e.getMessage());
+    }
+
+    private void checkWritable() {
+        if (closed) {
+            throw new IllegalStateException("数据库已关闭");
+        }
+        if (backgroundError != null) {
+            throw new UncheckedIOException("数据库后台任务失败", backgroundError);
+        }
+    }
+
+    private void awaitBackground() {
+        try {
+            background.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        if (backgroundError != null) {
+            throw new UncheckedIOException("数据库后台任务失败", backgroundError);
+        }
+    }
+
+    private List<Long> readManifest() throws IOException {
+        Path path = directory.resolve(MANIFEST);
+        List<Long> numbers = new ArrayList<>();
+        if (Files.exists(path)) {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    numbers.add(Long.parseLong(line.trim()));
+                }
+            }
+        }
+        return numbers;
+    }
+
+    /**
+     * 记录当前的段文件，从新到旧每行一个编号
+     */
+    private void writeManifest(List<SSTable> tables) throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (SSTable table : tables) {
+            content.append(table.getNumber()).append('\n');
+        }
+        Path tmp = directory.resolve(MANIFEST + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private ReopeningChannel openWal(long number) throws IOException {
+        return new ReopeningChannel(walPath(number), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private Path walPath(long number) {
+        return directory.resolve(WAL_PREFIX + number + WAL_SUFFIX);
+    }
+
+    private Path tablePath(long number) {
+        return directory.resolve(TABLE_PREFIX + number + TABLE_SUFFIX);
+    }
+
+    /**
+     * 从文件名中解析编号
+     *
+     * @return 文件名不匹配时返回-1
+     */
+    private static long fileNumber(String name, String prefix, String suffix) {
+        if (!name.startsWith(prefix) || !name.endsWith(suffix)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 多路归并若干个有序的数据源，同一个key只返回最新的数据源中的值，删除标记跳过
+     */
+    private static class MergingIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+
+        private final PriorityQueue<Cursor> queue = new PriorityQueue<>();
+
+        private Map.Entry<byte[], byte[]> next;
+
+        /**
+         * @param sources 从新到旧的数据源
+         */
+        MergingIterator(List<Iterator<Map.Entry<byte[], byte[]>>> sources) {
+            for (int i = 0; i < sources.size(); i++) {
+                Cursor cursor = new Cursor(sources.get(i), i);
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+            next = fetch();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<byte[], byte[]> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<byte[], byte[]> result = next;
+            next = fetch();
+            return result;
+        }
+
+        private Map.Entry<byte[], byte[]> fetch() {
+            while (!queue.isEmpty()) {
+                Cursor newest = queue.poll();
+                Map.Entry<byte[], byte[]> entry = newest.current;
+                // 更旧的数据源中相同的key都跳过
+                while (!queue.isEmpty() && KEY_COMPARATOR.compare(queue.peek().current.getKey(), entry.getKey()) == 0) {
+                    Cursor older = queue.poll();
+                    if (older.advance()) {
+                        queue.add(older);
+                    }
+                }
+                if (newest.advance()) {
+                    queue.add(newest);
+                }
+                if (entry.getValue() != TOMBSTONE) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        private static class Cursor implements Comparable<Cursor> {
+
+            final Iterator<Map.Entry<byte[], byte[]>> iterator;
+
+            /**
+             * 数据源的新旧顺序，越小越新
+             */
+            final int rank;
+
+            Map.Entry<byte[], byte[]> current;
+
+            Cursor(Iterator<Map.Entry<byte[], byte[]>> iterator, int rank) {
+                this.iterator = iterator;
+                this.rank = rank;
+            }
+
+            boolean advance() {
+                if (!iterator.hasNext()) {
+                    return false;
+                }
+                Map.Entry<byte[], byte[]> entry = iterator.next();
+                // 跳表的条目是视图，复制一份固定下来
+                current = new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+                return true;
+            }
+
+            @Override
+            public int compareTo(Cursor other) {
+                int cmp = KEY_COMPARATOR.compare(current.getKey(), other.current.getKey());
+                return cmp != 0 ? cmp : Integer.compare(rank, other.rank);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.milkygreen.blockchain.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 不受线程中断影响的文件通道
+ * FileChannel是可中断的：调用线程在读写过程中被中断，通道会被关闭并抛出ClosedByInterruptException，之后所有操作都失败。
+ * 区块和索引是在矿工线程里写入的，而矿工是通过中断来停止的，一次中断就会让整个存储失效。
+ * 这里每次操作之前先清除中断标记，通道被中断关闭时重新打开再做一遍，最后恢复中断标记，调用者仍然能看到中断。
+ * 只提供按位置的写入，重做一遍的结果与一次成功相同。
+ * 所有方法都是线程安全的。
+ */
+final class ReopeningChannel implements Closeable {
+
+    private interface ChannelOperation<T> {
+        T apply(FileChannel channel) throws IOException;
+    }
+
+    private final Path path;
+
+    private FileChannel channel;
+
+    private boolean closed;
+
+    /**
+     * @param options 第一次打开时的选项，重新打开时文件已经存在，只用读写方式打开
+     */
+    ReopeningChannel(Path path, OpenOption... options) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, options);
+    }
+
+    /**
+     * 把buffer的全部内容写到文件的position处
+     */
+    void write(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        run(channel -> {
+            ((Buffer) buffer).position(start);
+            long offset = position;
+            while (buffer.hasRemaining()) {
+                offset += channel.write(buffer, offset);
+            }
+            return null;
+        });
+    }
+
+    void force(boolean metaData) throws IOException {
+        run(channel -> {
+            channel.force(metaData);
+            return null;
+        });
+    }
+
+    long size() throws IOException {
+        return run(FileChannel::size);
+    }
+
+    /**
+     * 只读映射，映射区域在通道关闭之后仍然有效
+     */
+    MappedByteBuffer map(long size) throws IOException {
+        return run(channel -> channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    private synchronized <T> T run(ChannelOperation<T> operation) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                try {
+                    return operation.apply(channel);
+                } catch (ClosedByInterruptException e) {
+                    interrupted |= Thread.interrupted();
+                    reopen();
+                } catch (ClosedChannelException e) {
+                    // 别的线程操作时被中断关闭了通道
+                    reopen();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void reopen() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
@@ -0,0 +1,320 @@
+package com.milkygreen.blockchain.db;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.primitives.UnsignedBytes;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * 不可变的有序段文件(SSTable)
+ * 文件格式：
+ * 数据区：按key升序排列的记录，每条记录是 key长度(4字节) | key | 类型(1字节) | value长度(4字节) | value，删除标记没有value
+ * 索引区：每{@link #INDEX_INTERVAL}条记录取一个key和它的偏移量
+ * 布隆过滤器：所有key，用来在查找不存在的key时避免读数据区
+ * 尾部：索引区偏移量(8字节) | 布隆过滤器偏移量(8字节) | 记录数量(4字节) | 魔数(4字节)
+ * 文件整个映射到内存中读取，索引区和布隆过滤器在打开时加载到堆上。单个文件不能超过2GB。
+ */
+class SSTable {
+
+    /**
+     * 稀疏索引的间隔
+     */
+    static final int INDEX_INTERVAL = 16;
+
+    /**
+     * 布隆过滤器的误判率
+     */
+    private static final double BLOOM_FPP = 0.01;
+
+    private static final int MAGIC = 0x53535431;
+
+    private static final int FOOTER_LENGTH = 24;
+
+    private static final byte DELETE = 0;
+
+    private static final byte PUT = 1;
+
+    private final long number;
+
+    private final Path path;
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * 数据区的结束位置，即索引区的开始位置
+     */
+    private final int dataEnd;
+
+    private final byte[][] indexKeys;
+
+    private final int[] indexOffsets;
+
+    private final BloomFilter<byte[]> bloomFilter;
+
+    private final int entryCount;
+
+    private SSTable(long number, Path path, MappedByteBuffer buffer, int dataEnd, byte[][] indexKeys,
+                    int[] indexOffsets, BloomFilter<byte[]> bloomFilter, int entryCount) {
+        this.number = number;
+        this.path = path;
+        this.buffer = buffer;
+        this.dataEnd = dataEnd;
+        this.indexKeys = indexKeys;
+        this.indexOffsets = indexOffsets;
+        this.bloomFilter = bloomFilter;
+        this.entryCount = entryCount;
+    }
+
+    /**
+     * 把有序的记录写成一个新的段文件
+     * 先写到临时文件，写完并强制刷盘之后再改名，所以段文件要么不存在，要么是完整的。
+     *
+     * @param entries         按key升序排列的记录，value为{@link KVStore#TOMBSTONE}表示删除标记
+     * @param expectedEntries 预计的记录数量，用于确定布隆过滤器的大小
+     */
+    static SSTable write(Path path, long number, Iterator<Map.Entry<byte[], byte[]>> entries, int expectedEntries)
+            throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        BloomFilter<byte[]> bloomFilter = BloomFilter.create(Funnels.byteArrayFunnel(), Math.max(expectedEntries, 1), BLOOM_FPP);
+        List<byte[]> indexKeys = new ArrayList<>();
+        List<Long> indexOffsets = new ArrayList<>();
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            int count = 0;
+            while (entries.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = entries.next();
+                byte[] key = entry.getKey();
+                byte[] value = entry.getValue();
+                if (count % INDEX_INTERVAL == 0) {
+                    indexKeys.add(key);
+                    indexOffsets.add((long) out.size());
+                }
+                out.writeInt(key.length);
+                out.write(key);
+                if (value == KVStore.TOMBSTONE) {
+                    out.writeByte(DELETE);
+                } else {
+                    out.writeByte(PUT);
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+                bloomFilter.put(key);
+                count++;
+            }
+            long indexOffset = out.size();
+            out.writeInt(indexKeys.size());
+            for (int i = 0; i < indexKeys.size(); i++) {
+                out.writeInt(indexKeys.get(i).length);
+                out.write(indexKeys.get(i));
+                out.writeLong(indexOffsets.get(i));
+            }
+            long bloomOffset = out.size();
+            bloomFilter.writeTo(out);
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeInt(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            // DataOutputStream的计数是int，超过2GB之后会溢出
+            if (out.size() < 0) {
+                throw new IOException("段文件超过2GB");
+            }
+            file.getChannel().force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return open(path, number);
+    }
+
+    /**
+     * 打开段文件
+     */
+    static SSTable open(Path path, long number) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < FOOTER_LENGTH || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("段文件大小不正确：" + path);
+            }
+            // 映射建立之后关闭channel不影响映射
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int footer = buffer.capacity() - FOOTER_LENGTH;
+        if (buffer.getInt(footer + 20) != MAGIC) {
+            throw new IOException("段文件已损坏：" + path);
+        }
+        int indexOffset = (int) buffer.getLong(footer);
+        int bloomOffset = (int) buffer.getLong(footer + 8);
+        int entryCount = buffer.getInt(footer + 16);
+
+        int position = indexOffset;
+        int indexCount = buffer.getInt(position);
+        position += 4;
+        byte[][] indexKeys = new byte[indexCount][];
+        int[] indexOffsets = new int[indexCount];
+        for (int i = 0; i < indexCount; i++) {
+            int length = buffer.getInt(position);
+            indexKeys[i] = bytes(buffer, position + 4, length);
+            indexOffsets[i] = (int) buffer.getLong(position + 4 + length);
+            position += 4 + length + 8;
+        }
+        byte[] bloom = bytes(buffer, bloomOffset, footer - bloomOffset);
+        BloomFilter<byte[]> bloomFilter = BloomFilter.readFrom(new ByteArrayInputStream(bloom), Funnels.byteArrayFunnel());
+        return new SSTable(number, path, buffer, indexOffset, indexKeys, indexOffsets, bloomFilter, entryCount);
+    }
+
+    /**
+     * 查找key
+     *
+     * @return value，删除标记返回{@link KVStore#TOMBSTONE}，不存在时返回null
+     */
+    byte[] get(byte[] key) {
+        if (!bloomFilter.mightContain(key)) {
+            return null;
+        }
+        int block = floorIndex(key);
+        if (block < 0) {
+            return null;
+        }
+        int end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        for (int position = indexOffsets[block]; position < end; ) {
+            int keyLength = buffer.getInt(position);
+            int cmp = compare(position + 4, keyLength, key);
+            int flagPosition = position + 4 + keyLength;
+            if (cmp == 0) {
+                if (buffer.get(flagPosition) == DELETE) {
+                    return KVStore.TOMBSTONE;
+                }
+                return bytes(buffer, flagPosition + 5, buffer.getInt(flagPosition + 1));
+            }
+            if (cmp > 0) {
+                return null;
+            }
+            position = next(flagPosition);
+        }
+        return null;
+    }
+
+    /**
+     * 从第一个不小于start的key开始顺序遍历
+     *
+     * @param start 起始key，null表示从头开始
+     */
+    Iterator<Map.Entry<byte[], byte[]>> iterator(byte[] start) {
+        int position = 0;
+        if (start != null) {
+            int block = floorIndex(start);
+            position = block < 0 ? 0 : indexOffsets[block];
+            while (position < dataEnd && compare(position + 4, buffer.getInt(position), start) < 0) {
+                position = next(position + 4 + buffer.getInt(position));
+            }
+        }
+        int from = position;
+        return new Iterator<Map.Entry<byte[], byte[]>>() {
+
+            private int position = from;
+
+            @Override
+            public boolean hasNext() {
+                return position < dataEnd;
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if (position >= dataEnd) {
+                    throw new NoSuchElementException();
+                }
+                int keyLength = buffer.getInt(position);
+                byte[] key = bytes(buffer, position + 4, keyLength);
+                int flagPosition = position + 4 + keyLength;
+                byte[] value = buffer.get(flagPosition) == DELETE
+                        ? KVStore.TOMBSTONE
+                        : bytes(buffer, flagPosition + 5, buffer.getInt(flagPosition + 1));
+                position = SSTable.this.next(flagPosition);
+                return new AbstractMap.SimpleImmutableEntry<>(key, value);
+            }
+        };
+    }
+
+    long getNumber() {
+        return number;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * 最后一个不大于key的索引项，没有时返回-1
+     */
+    private int floorIndex(byte[] key) {
+        int low = 0;
+        int high = indexKeys.length - 1;
+        int result = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (UnsignedBytes.lexicographicalComparator().compare(indexKeys[mid], key) <= 0) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 下一条记录的位置
+     *
+     * @param flagPosition 当前记录类型字段的位置
+     */
+    private int next(int flagPosition) {
+        if (buffer.get(flagPosition) == DELETE) {
+            return flagPosition + 1;
+        }
+        return flagPosition + 5 + buffer.getInt(flagPosition + 1);
+    }
+
+    /**
+     * 按无符号字节比较文件中的key与给定的key，不复制文件中的数据
+     */
+    private int compare(int position, int length, byte[] key) {
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int a = buffer.get(position + i) & 0xff;
+            int b = key[i] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        return bytes;
+    }
+}
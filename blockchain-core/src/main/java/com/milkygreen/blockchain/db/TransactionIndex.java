@@ -0,0 +1,203 @@
+package com.milkygreen.blockchain.db;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.milkygreen.blockchain.core.Block;
+import com.milkygreen.blockchain.core.Hash256;
+import com.milkygreen.blockchain.core.Transaction;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * 主链交易索引：交易hash-(区块高度, 交易在区块中的位置)
+ * 以前每笔确认的交易都以完整对象放在一个HashMap中，区块里也有同一笔交易，交易在堆上保存了两份，而且永远不会释放。
+ * 这里只保存定位信息，查询交易时按高度从{@link BlockStore}读取区块，再按位置取出交易，
+ * 最近查询过的少量交易放在缓存中。
+ * 定位信息保存在{@link KVStore}中，key是 't' | 交易hash(32字节)，value是 区块高度(4字节) | 位置(4字节)。
+ * 索引记录了它对应的主链最新区块，启动时与链状态对齐，不需要从创世区块开始重建。
+ * 每个区块的索引和最新区块在同一批写入中，断电时丢掉的只是最后几个区块的完整记录，启动时会补上，
+ * 所以写入之后不强制刷盘，连接区块时不用在主链的锁里等待磁盘。
+ * 所有方法都是线程安全的。
+ */
+public class TransactionIndex implements ChainIndex, Closeable {
+
+    /**
+     * 缓存的交易数量
+     */
+    private static final int CACHE_SIZE = 1024;
+
+    private static final long MAX_HEIGHT = 0xffffffffL;
+
+    private static final byte ENTRY_PREFIX = 't';
+
+    private static final byte[] TIP_KEY = {'T'};
+
+    private final KVStore store;
+
+    private final BlockStore blockStore;
+
+    /**
+     * 最近查询过的交易
+     */
+    private final Cache<Hash256, Transaction> cache = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .build();
+
+    /**
+     * @param directory  索引的数据目录
+     * @param blockStore 查询交易时从这里读取主链区块
+     */
+    public TransactionIndex(Path directory, BlockStore blockStore) {
+        this.store = new KVStore(directory, KVStore.DEFAULT_MEM_TABLE_SIZE, KVStore.DEFAULT_COMPACTION_THRESHOLD, false);
+        this.blockStore = blockStore;
+    }
+
+    /**
+     * 为连接到主链上的区块中的所有交易建立索引，与索引的最新区块在同一批写入中更新
+     *
+     * @throws IllegalArgumentException 高度超出范围
+     */
+    @Override
+    public synchronized void connectBlock(Block block) {
+        long height = block.getHeight();
+        if (height < 0 || height > MAX_HEIGHT) {
+            throw new IllegalArgumentException("高度超出范围：" + height);
+        }
+        WriteBatch batch = new WriteBatch();
+        List<Transaction> transactions = block.getTransactions();
+        for (int position = 0; position < transactions.size(); position++) {
+            Hash256 hash = transactions.get(position).getHashValue();
+            batch.put(key(hash), ByteBuffer.allocate(8).putInt((int) height).putInt(position).array());
+            cache.invalidate(hash);
+        }
+        ByteBuffer tip = ByteBuffer.allocate(Hash256.LENGTH + 8);
+        block.getHashValue().writeTo(tip);
+        tip.putLong(height);
+        batch.put(TIP_KEY, tip.array());
+        store.write(batch);
+    }
+
+    /**
+     * 删除从主链上断开的区块中所有交易的索引，索引的最新区块退回到父区块
+     */
+    @Override
+    public synchronized void disconnectBlock(Block block) {
+        WriteBatch batch = new WriteBatch();
+        for (Transaction transaction : block.getTransactions()) {
+            batch.delete(key(transaction.getHashValue()));
+        }
+        if (block.getPreHashValue() == null) {
+            batch.delete(TIP_KEY);
+        } else {
+            ByteBuffer tip = ByteBuffer.allocate(Hash256.LENGTH + 8);
+            block.getPreHashValue().writeTo(tip);
+            tip.putLong(block.getHeight() - 1);
+            batch.put(TIP_KEY, tip.array());
+        }
+        store.write(batch);
+        for (Transaction transaction : block.getTransactions()) {
+            cache.invalidate(transaction.getHashValue());
+        }
+    }
+
+    /**
+     * 交易是否在主链上
+     */
+    public boolean contains(Hash256 hash) {
+        return hash != null && store.get(key(hash)) != null;
+    }
+
+    /**
+     * 交易所在区块的高度
+     *
+     * @return 不在主链上时返回-1
+     */
+    public long getHeight(Hash256 hash) {
+        long location = hash == null ? -1 : location(hash);
+        return location < 0 ? -1 : location >>> 32;
+    }
+
+    /**
+     * 根据hash查询主链上的交易，先查缓存，查不到时读取交易所在的区块
+     *
+     * @return 不在主链上时返回null
+     */
+    public Transaction getTransaction(Hash256 hash) {
+        if (hash == null) {
+            return null;
+        }
+        Transaction transaction = cache.getIfPresent(hash);
+        if (transaction != null) {
+            return transaction;
+        }
+        long location = location(hash);
+        if (location < 0) {
+            return null;
+        }
+        // 读区块时不持有锁，期间区块可能被断开，取出来的交易要核对hash
+        Block block = blockStore.getBlock(location >>> 32);
+        int position = (int) location;
+        if (block == null || position >= block.getTransactions().size()) {
+            return null;
+        }
+        transaction = block.getTransactions().get(position);
+        if (!hash.equals(transaction.getHashValue())) {
+            return null;
+        }
+        synchronized (this) {
+            // 索引没有变化才放入缓存，免得缓存一笔刚被断开的交易
+            if (location(hash) == location) {
+                cache.put(hash, transaction);
+            }
+        }
+        return transaction;
+    }
+
+    /**
+     * 索引对应的主链最新区块
+     *
+     * @return 还没有索引任何区块时返回null
+     */
+    @Override
+    public Hash256 getTipHash() {
+        byte[] tip = store.get(TIP_KEY);
+        return tip == null ? null : Hash256.of(tip, 0);
+    }
+
+    /**
+     * 索引对应的主链最新区块的高度，还没有索引任何区块时返回-1
+     */
+    public long getTipHeight() {
+        byte[] tip = store.get(TIP_KEY);
+        return tip == null ? -1 : ByteBuffer.wrap(tip).getLong(Hash256.LENGTH);
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    /**
+     * 交易的位置，高32位是区块高度，低32位是交易在区块中的位置
+     *
+     * @return 不在主链上时返回-1
+     */
+    private long location(Hash256 hash) {
+        byte[] value = store.get(key(hash));
+        if (value == null) {
+            return -1;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        return ((buffer.getInt() & MAX_HEIGHT) << 32) | (buffer.getInt() & 0xffffffffL);
+    }
+
+    private static byte[] key(Hash256 hash) {
+        ByteBuffer key = ByteBuffer.allocate(1 + Hash256.LENGTH);
+        key.put(ENTRY_PREFIX);
+        hash.writeTo(key);
+        return key.array();
+    }
+}
@@ -0,0 +1,661 @@
+package com.milkygreen.blockchain.db;
+
+import com.google.common.util.concurrent.Striped;
+import com.milkygreen.blockchain.core.Hash256;
+import com.milkygreen.blockchain.core.OutPoint;
+import com.milkygreen.blockchain.core.Transaction;
+import com.milkygreen.blockchain.core.TransactionInput;
+import com.milkygreen.blockchain.core.TransactionOutput;
+import com.milkygreen.blockchain.util.AddressCache;
+import com.milkygreen.blockchain.util.TransactionUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 未确认交易池
+ * 区块链网络中发生的交易，还没有被打包进任何一个区块，暂时放在这里，等矿工来取。
+ * 交易进入交易池之前要先通过校验：hash、金额、所花费的UTXO是否存在、签名是否正确，以及是否和池中的交易花费了同一个输出。
+ * 这样非法交易和双花交易在进入交易池时就被拒绝，不会等到整个区块校验失败才发现，白白浪费挖矿的算力。
+ * 交易池为空的时候，矿工可以在这里阻塞等待，有新交易进来时会被立刻唤醒，而不是反复轮询。
+ * 交易池同时维护一个按打包优先级（交易时间，相同时按hash）排好序的索引，放入、删除交易时增量更新，
+ * 矿工构建区块时只需要从头取出前k个交易，不需要每次复制、排序整个交易池。
+ * 交易池占用的内存是有上限的：每笔交易进来时估算它占用的内存，超过上限时从优先级最低的交易开始淘汰；
+ * 在池中停留的时间超过上限的交易也会被清理掉。这样提交量突增的时候，堆内存不会无限制地增长。
+ */
+public class TransactionPool {
+
+    /**
+     * 输出点锁的分段数量
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * 默认内存上限：64MB
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * 默认最长存活时间：1小时
+     */
+    public static final long DEFAULT_MAX_AGE_MILLIS = 60L * 60 * 1000;
+
+    /**
+     * 内存上限，单位字节
+     */
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * 交易的最长存活时间，从交易进入交易池开始计算，单位毫秒
+     * 不按交易自己的时间戳计算：区块被断开之后放回交易池的交易可能已经很旧了，但它们仍然应该被重新打包。
+     */
+    private volatile long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+    /**
+     * 池中交易估算占用的内存总量
+     */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * 因为超过内存上限而被淘汰的交易数量
+     */
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    /**
+     * 因为存在时间过长而被清理的交易数量
+     */
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    /**
+     * hash-交易
+     */
+    private final Map<Hash256, Transaction> transactions = new ConcurrentHashMap<>();
+
+    /**
+     * 被池中交易花费的输出点-花费它的交易hash，用来在O(1)时间内发现双花
+     */
+    private final Map<OutPoint, Hash256> spentOutPoints = new ConcurrentHashMap<>();
+
+    /**
+     * 输出点的分段锁。
+     * 冲突检查和登记必须是原子的，但只有花费同一个输出点的交易之间才需要互斥，
+     * 所以按输出点分段加锁，不同生产者线程提交互不相干的交易时不会争抢同一把锁。
+     * 放入和删除交易都持有它花费的输出点的锁，输出点的登记和释放与交易本身的放入和删除在同一个compute里完成。
+     */
+    private final Striped<Lock> outPointLocks = Striped.lock(LOCK_STRIPES);
+
+    /**
+     * 打包优先级：时间早的交易先打包，时间相同的按hash排序，保证两笔不同的交易不会被认为相等
+     */
+    private static final Comparator<Transaction> PRIORITY = Comparator
+            .comparingLong(Transaction::getTimestamp)
+            .thenComparing(Transaction::getHashValue);
+
+    /**
+     * 按打包优先级排序的交易索引
+     */
+    private final NavigableSet<Transaction> selectionIndex = new ConcurrentSkipListSet<>(PRIORITY);
+
+    /**
+     * hash-交易进入交易池的记录
+     */
+    private final Map<Hash256, Admission> admissions = new ConcurrentHashMap<>();
+
+    /**
+     * 按进入交易池的时间排序的索引，用来清理存在时间过长的交易
+     */
+    private final NavigableSet<Admission> admissionIndex = new ConcurrentSkipListSet<>(Comparator
+            .comparingLong((Admission admission) -> admission.time)
+            .thenComparing(admission -> admission.hash));
+
+    /**
+     * 一笔交易进入交易池的时间
+     */
+    private static final class Admission {
+
+        final long time;
+
+        final Hash256 hash;
+
+        Admission(long time, Hash256 hash) {
+            this.time = time;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * 交易池非空的等待条件
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * 正在等待的线程数量，没有人等待的时候放入交易不需要加锁
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * 校验并放入一笔交易，成功后唤醒等待交易的矿工
+     * 可以被多个线程同时调用
+     *
+     * @param transaction 交易
+     * @return 是否被接受
+     */
+    public boolean add(Transaction transaction) {
+        expire();
+        if (transactions.containsKey(transaction.getHashValue())) {
+            System.out.println("交易已经在交易池中！");
+            return false;
+        }
+        List<OutPoint> outPoints = checkTransaction(transaction);
+        if (outPoints == null) {
+            return false;
+        }
+        List<Lock> acquired = lock(outPoints);
+        try {
+            for (OutPoint outPoint : outPoints) {
+                if (spentOutPoints.containsKey(outPoint)) {
+                    System.out.println("交易与交易池中的交易花费了同一个输出！");
+                    return false;
+                }
+            }
+            if (!insert(transaction, outPoints)) {
+                System.out.println("交易已经在交易池中！");
+                return false;
+            }
+        } finally {
+            unlock(acquired);
+        }
+        // 校验之后、登记之前，输出可能刚被并发连接的区块花掉，而区块删除冲突交易时还看不到这笔交易。
+        // 连接区块先修改UTXO缓存，再删除冲突交易，所以登记之后再检查一遍，两边总有一边会发现冲突。
+        if (spendsMissingOutput(transaction)) {
+            remove(transaction.getHashValue());
+            System.out.println("交易花费的输出已经被区块花掉了！");
+            return false;
+        }
+        evict();
+        if (!transactions.containsKey(transaction.getHashValue())) {
+            // 新交易本身就是优先级最低的，直接被淘汰了
+            System.out.println("交易池已满！");
+            return false;
+        }
+        signalWaiters();
+        return true;
+    }
+
+    /**
+     * 超过内存上限时，从优先级最低的交易开始淘汰
+     */
+    private void evict() {
+        while (bytes.get() > maxBytes) {
+            Transaction lowest;
+            try {
+                lowest = selectionIndex.last();
+            } catch (NoSuchElementException e) {
+                return;
+            }
+            if (remove(lowest.getHashValue()) != null) {
+                evictedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 清理进入交易池的时间超过上限的交易
+     * 进入时间索引的头部就是最早进入的交易，所以只需要检查头部，时间复杂度与清理的数量成正比
+     */
+    public void expire() {
+        long deadline = System.currentTimeMillis() - maxAgeMillis;
+        while (true) {
+            Admission oldest;
+            try {
+                oldest = admissionIndex.first();
+            } catch (NoSuchElementException e) {
+                return;
+            }
+            if (oldest.time >= deadline) {
+                return;
+            }
+            if (remove(oldest.hash) != null) {
+                expiredCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 估算一笔交易在交易池中占用的内存，包括交易对象本身以及交易池各个索引中的节点
+     * 只是一个近似值，用来控制交易池的大小
+     */
+    public static long estimateSize(Transaction transaction) {
+        // 交易对象、哈希表节点、跳表节点，以及进入时间记录和它的哈希表节点、跳表节点
+        long size = 64 + 48 + 48 + 24 + 48 + 48;
+        size += estimateSize(transaction.getHashValue()) + estimateSize(transaction.getPayee());
+        if (transaction.getInputs() != null) {
+            size += 40 + 8L * transaction.getInputs().size();
+            for (TransactionInput input : transaction.getInputs()) {
+                // 输入对象，以及双花索引中的输出点和节点
+                size += 32 + 24 + 48;
+                size += estimateSize(input.getTransactionHashValue())
+                        + estimateSize(input.getSignature())
+                        + estimateSize(input.getPublicKey());
+                TransactionOutput unspentOutput = input.getUnspentOutput();
+                if (unspentOutput != null) {
+                    size += estimateSize(unspentOutput);
+                }
+            }
+        }
+        if (transaction.getOutputs() != null) {
+            size += 40 + 8L * transaction.getOutputs().size();
+            for (TransactionOutput output : transaction.getOutputs()) {
+                size += estimateSize(output);
+            }
+        }
+        return size;
+    }
+
+    private static long estimateSize(TransactionOutput output) {
+        return 40 + estimateSize(output.getTransactionHashValue()) + estimateSize(output.getAccount());
+    }
+
+    private static long estimateSize(String value) {
+        return value == null ? 0 : 40 + value.length();
+    }
+
+    private static long estimateSize(Hash256 value) {
+        return value == null ? 0 : 56;
+    }
+
+    /**
+     * 校验交易本身，以及它所花费的输出是否都还存在
+     *
+     * @return 交易花费的输出点列表，校验不通过时返回null
+     */
+    private List<OutPoint> checkTransaction(Transaction transaction) {
+        if (transaction.getType() != Transaction.TRANSACTION_TYPE_NORMAL) {
+            System.out.println("只有普通交易可以进入交易池！");
+            return null;
+        }
+        if (!TransactionUtil.calculateHashValue(transaction).equals(transaction.getHashValue())) {
+            System.out.println("交易的hash值非法！");
+            return null;
+        }
+        if (transaction.getPayee() != null && AddressCache.publicKeyHash(transaction.getPayee()) == null) {
+            System.out.println("交易的收款地址不合法！");
+            return null;
+        }
+        List<TransactionInput> inputs = transaction.getInputs();
+        List<TransactionOutput> outputs = transaction.getOutputs();
+        if (inputs == null || inputs.isEmpty() || outputs == null || outputs.isEmpty()) {
+            System.out.println("交易缺少输入或输出！");
+            return null;
+        }
+        List<OutPoint> outPoints = new ArrayList<>(inputs.size());
+        Set<OutPoint> distinct = new HashSet<>();
+        long inputAmount = 0;
+        for (TransactionInput input : inputs) {
+            TransactionOutput unspentOutput = input.getUnspentOutput();
+            OutPoint outPoint = OutPoint.of(unspentOutput);
+            if (!distinct.add(outPoint)) {
+                System.out.println("交易中含有重复的未花费输出！");
+                return null;
+            }
+            if (!isUnspent(unspentOutput)) {
+                System.out.println("试图花费不存在的UTXO！");
+                return null;
+            }
+            if (!TransactionUtil.validateSignature(input.getPublicKey(), input.getSignature(), input)) {
+                System.out.println("交易的input签名未校验通过！");
+                return null;
+            }
+            outPoints.add(outPoint);
+            inputAmount += unspentOutput.getAmount();
+        }
+        long outputAmount = 0;
+        for (TransactionOutput output : outputs) {
+            if (AddressCache.publicKeyHash(output.getAccount()) == null) {
+                System.out.println("交易输出的收款地址不合法！");
+                return null;
+            }
+            // 与区块入库时的规则相同，否则打包了这笔交易的区块无法通过校验
+            if (!transaction.getHashValue().equals(output.getTransactionHashValue())) {
+                System.out.println("交易输出不属于这笔交易！");
+                return null;
+            }
+            if (!distinct.add(OutPoint.of(output)) || DBUtil.coinsCache.contains(OutPoint.of(output))) {
+                System.out.println("交易输出已经存在！");
+                return null;
+            }
+            outputAmount += output.getAmount();
+        }
+        if (inputAmount != outputAmount) {
+            System.out.println("交易的输入金额不匹配！");
+            return null;
+        }
+        return outPoints;
+    }
+
+    /**
+     * 输出是否未花费，查询经过UTXO缓存
+     */
+    private static boolean isUnspent(TransactionOutput output) {
+        return DBUtil.coinsCache.contains(output);
+    }
+
+    /**
+     * 放入交易池和排序索引，并登记交易花费的输出点
+     * 调用者持有这些输出点的锁。
+     *
+     * @return 交易池中是否原本没有这个交易
+     */
+    private boolean insert(Transaction transaction, List<OutPoint> outPoints) {
+        boolean[] inserted = new boolean[1];
+        // 在compute里更新索引，同一个hash的并发放入、删除不会让索引和交易池不一致
+        transactions.compute(transaction.getHashValue(), (key, previous) -> {
+            if (previous != null) {
+                return previous;
+            }
+            for (OutPoint outPoint : outPoints) {
+                spentOutPoints.put(outPoint, key);
+            }
+            selectionIndex.add(transaction);
+            Admission admission = new Admission(System.currentTimeMillis(), key);
+            admissions.put(key, admission);
+            admissionIndex.add(admission);
+            bytes.addAndGet(estimateSize(transaction));
+            inserted[0] = true;
+            return transaction;
+        });
+        return inserted[0];
+    }
+
+    private void signalWaiters() {
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 删除一笔交易，同时释放它花费的输出点
+     */
+    public Transaction remove(String hash) {
+        return remove(Hash256.fromHex(hash));
+    }
+
+    /**
+     * 删除一笔交易，同时释放它花费的输出点
+     * 持有这些输出点的锁，释放输出点与删除交易在同一个compute里完成，不会与并发的放入交错。
+     */
+    public Transaction remove(Hash256 hash) {
+        while (true) {
+            Transaction transaction = transactions.get(hash);
+            if (transaction == null) {
+                return null;
+            }
+            List<OutPoint> outPoints = new ArrayList<>();
+            if (transaction.getInputs() != null) {
+                for (TransactionInput input : transaction.getInputs()) {
+                    outPoints.add(OutPoint.of(input.getUnspentOutput()));
+                }
+            }
+            boolean[] removed = new boolean[1];
+            List<Lock> acquired = lock(outPoints);
+            try {
+                transactions.computeIfPresent(hash, (key, previous) -> {
+                    if (previous != transaction) {
+                        // 加锁之前交易被删除又重新放入了，持有的不是它的锁
+                        return previous;
+                    }
+                    for (OutPoint outPoint : outPoints) {
+                        spentOutPoints.remove(outPoint, key);
+                    }
+                    selectionIndex.remove(previous);
+                    Admission admission = admissions.remove(key);
+                    if (admission != null) {
+                        admissionIndex.remove(admission);
+                    }
+                    bytes.addAndGet(-estimateSize(previous));
+                    removed[0] = true;
+                    return null;
+                });
+            } finally {
+                unlock(acquired);
+            }
+            if (removed[0]) {
+                return transaction;
+            }
+        }
+    }
+
+    /**
+     * 按固定顺序给输出点加锁，多个线程同时加锁不会死锁
+     *
+     * @return 已经加上的锁，按加锁的顺序
+     */
+    private List<Lock> lock(List<OutPoint> outPoints) {
+        List<Lock> acquired = new ArrayList<>(outPoints.size());
+        for (Lock outPointLock : outPointLocks.bulkGet(outPoints)) {
+            outPointLock.lock();
+            acquired.add(outPointLock);
+        }
+        return acquired;
+    }
+
+    private static void unlock(List<Lock> acquired) {
+        for (int i = acquired.size() - 1; i >= 0; i--) {
+            acquired.get(i).unlock();
+        }
+    }
+
+    /**
+     * 删除与已确认交易冲突的交易，即花费了同一个输出的交易，它们已经不可能再被确认了
+     *
+     * @param confirmed 已经被打包进区块的交易
+     */
+    public void removeConflicts(Transaction confirmed) {
+        if (confirmed.getInputs() == null) {
+            return;
+        }
+        for (TransactionInput input : confirmed.getInputs()) {
+            Hash256 conflict = spentOutPoints.get(OutPoint.of(input.getUnspentOutput()));
+            if (conflict != null && !conflict.equals(confirmed.getHashValue())) {
+                remove(conflict);
+            }
+        }
+    }
+
+    /**
+     * 删除花费了不存在的输出的交易
+     * 主链切换之后，只在原来主链上的输出不存在了，花费它们的交易再也不可能被确认，需要重新检查整个交易池。
+     *
+     * @return 删除的交易数量
+     */
+    public int removeUnspendable() {
+        int count = 0;
+        for (Transaction transaction : transactions.values()) {
+            if (spendsMissingOutput(transaction) && remove(transaction.getHashValue()) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 重新校验交易池中的这些交易，删除已经不合法的
+     * 区块校验不通过时调用：区块中来自交易池的交易不删除的话，矿工下次还会打包出同样的区块。
+     *
+     * @param candidates 校验不通过的区块中的交易，不在交易池中的会被跳过
+     * @return 删除的交易数量
+     */
+    public int removeInvalid(Collection<Transaction> candidates) {
+        int count = 0;
+        for (Transaction candidate : candidates) {
+            Transaction transaction = transactions.get(candidate.getHashValue());
+            if (transaction != null && checkTransaction(transaction) == null
+                    && remove(transaction.getHashValue()) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 交易是否花费了不存在的输出
+     */
+    private static boolean spendsMissingOutput(Transaction transaction) {
+        for (TransactionInput input : transaction.getInputs()) {
+            if (!isUnspent(input.getUnspentOutput())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 输出是否已经被池中的交易花费
+     */
+    public boolean isSpent(OutPoint outPoint) {
+        return spentOutPoints.containsKey(outPoint);
+    }
+
+    /**
+     * 按打包优先级取出最多limit笔交易，时间复杂度O(limit)
+     *
+     * @param limit 最多取出的交易数量
+     * @return 交易列表，可以修改
+     */
+    public List<Transaction> select(long limit) {
+        expire();
+        List<Transaction> selected = new ArrayList<>((int) Math.min(limit, transactions.size()));
+        Iterator<Transaction> iterator = selectionIndex.iterator();
+        while (selected.size() < limit && iterator.hasNext()) {
+            selected.add(iterator.next());
+        }
+        return selected;
+    }
+
+    public Transaction get(String hash) {
+        return get(Hash256.fromHex(hash));
+    }
+
+    public Transaction get(Hash256 hash) {
+        return transactions.get(hash);
+    }
+
+    public boolean contains(String hash) {
+        return contains(Hash256.fromHex(hash));
+    }
+
+    public boolean contains(Hash256 hash) {
+        return transactions.containsKey(hash);
+    }
+
+    public int size() {
+        return transactions.size();
+    }
+
+    public boolean isEmpty() {
+        return transactions.isEmpty();
+    }
+
+    public Collection<Transaction> values() {
+        return transactions.values();
+    }
+
+    /**
+     * 池中交易估算占用的内存总量，单位字节
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * 设置内存上限，超出的部分会立刻被淘汰
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+        expire();
+    }
+
+    /**
+     * 阻塞等待，直到交易池中有交易
+     *
+     * @throws InterruptedException 等待过程中线程被中断
+     */
+    public void awaitTransactions() throws InterruptedException {
+        awaitTransactions(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 阻塞等待，直到交易池中有交易或者超时
+     *
+     * @return 交易池中是否有交易
+     * @throws InterruptedException 等待过程中线程被中断
+     */
+    public boolean awaitTransactions(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!transactions.isEmpty()) {
+            return true;
+        }
+        long nanos = unit.toNanos(timeout);
+        waiters.incrementAndGet();
+        try {
+            lock.lockInterruptibly();
+            try {
+                // 先登记等待者再检查，放入交易的线程要么能看到等待者，要么这里能看到新交易
+                while (transactions.isEmpty()) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+}
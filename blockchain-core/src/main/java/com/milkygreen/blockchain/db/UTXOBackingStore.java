@@ -0,0 +1,39 @@
+package com.milkygreen.blockchain.db;
+
+import com.milkygreen.blockchain.core.Hash256;
+import com.milkygreen.blockchain.core.OutPoint;
+
+import java.io.Closeable;
+import java.util.Map;
+
+/**
+ * 持久化保存未花费输出的存储，位于{@link UTXOCache}之下
+ * 存储中的未花费输出总是与某个完整的区块对应，这个区块就是存储的最新区块。
+ */
+public interface UTXOBackingStore extends UTXOView, Closeable {
+
+    /**
+     * 最新区块的hash
+     *
+     * @return 还没有区块时返回null
+     */
+    Hash256 getTipHash();
+
+    /**
+     * 最新区块的高度
+     *
+     * @return 还没有区块时返回-1
+     */
+    long getTipHeight();
+
+    /**
+     * 原子地写入一批修改，同时更新最新区块
+     *
+     * @param changes 输出点-新的未花费输出，value为null表示已经花费
+     * @param tipHash 最新区块的hash，为null时不更新最新区块
+     */
+    void batchWrite(Map<OutPoint, UTXOEntry> changes, Hash256 tipHash, long tipHeight);
+
+    @Override
+    void close();
+}
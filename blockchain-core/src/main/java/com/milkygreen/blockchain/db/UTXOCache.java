@@ -0,0 +1,267 @@
+package com.milkygreen.blockchain.db;
+
+import com.milkygreen.blockchain.core.Block;
+import com.milkygreen.blockchain.core.Hash256;
+import com.milkygreen.blockchain.core.OutPoint;
+import com.milkygreen.blockchain.core.Transaction;
+import com.milkygreen.blockchain.core.TransactionInput;
+import com.milkygreen.blockchain.core.TransactionOutput;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 写回式的未花费输出缓存，位于{@link UTXOBackingStore}之上
+ * 连接区块时新增、花掉的输出都只记录在内存中，并标记为脏(DIRTY)，查询时先查缓存，查不到再查下层存储并缓存结果。
+ * 新增的输出如果下层存储中肯定没有，还会标记为新(FRESH)：这样的输出在写回之前就被花掉时，直接从缓存中删除，
+ * 两者抵消，下层存储永远看不到它。同步区块时大部分输出很快就被花掉，这能省掉大部分写入。
+ * 缓存占用的内存超过预算之后，由调用者通过{@link #flushIfFull()}把所有脏的条目连同最新区块作为一批写回下层存储，然后清空缓存。
+ * 连接、断开区块只修改内存，而且先检查再修改，检查不通过时缓存不变，这样调用者可以把它放在所有磁盘写入之后。
+ * 下层存储只在写回时前进，进程崩溃之后从它记录的最新区块开始，根据区块文件重新连接之后的区块即可。
+ * 所有方法都是线程安全的。
+ */
+public class UTXOCache implements UTXOView {
+
+    /**
+     * 默认的内存预算：32MB
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 32 * 1024 * 1024;
+
+    /**
+     * 每个条目大致占用的内存：输出点、条目对象、HashMap节点，以及输出对象本身
+     */
+    static final int ENTRY_SIZE = 256;
+
+    /**
+     * 与下层存储不一致，需要写回
+     */
+    private static final byte DIRTY = 1;
+
+    /**
+     * 下层存储中没有这个输出点
+     */
+    private static final byte FRESH = 2;
+
+    private final UTXOBackingStore base;
+
+    private final long memoryBudget;
+
+    private final Map<OutPoint, CacheEntry> entries = new HashMap<>();
+
+    /**
+     * 缓存对应的最新区块，写回时一起写入下层存储
+     */
+    private Hash256 tipHash;
+
+    private long tipHeight;
+
+    /**
+     * 最新区块是否还没有写回
+     */
+    private boolean tipDirty;
+
+    private static class CacheEntry {
+
+        /**
+         * null表示已经花费
+         */
+        final UTXOEntry entry;
+
+        final byte flags;
+
+        CacheEntry(UTXOEntry entry, byte flags) {
+            this.entry = entry;
+            this.flags = flags;
+        }
+    }
+
+    public UTXOCache(UTXOBackingStore base) {
+        this(base, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * @param base         下层存储
+     * @param memoryBudget 缓存可以占用的内存，超过之后写回下层存储
+     */
+    public UTXOCache(UTXOBackingStore base, long memoryBudget) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("内存预算必须大于0");
+        }
+        this.base = base;
+        this.memoryBudget = memoryBudget;
+        this.tipHash = base.getTipHash();
+        this.tipHeight = base.getTipHeight();
+    }
+
+    @Override
+    public synchronized UTXOEntry getEntry(OutPoint outPoint) {
+        CacheEntry cached = entries.get(outPoint);
+        if (cached != null) {
+            return cached.entry;
+        }
+        UTXOEntry entry = base.getEntry(outPoint);
+        if (entry != null) {
+            entries.put(outPoint, new CacheEntry(entry, (byte) 0));
+        }
+        return entry;
+    }
+
+    /**
+     * 新增一个未花费输出
+     * 新输出所在的交易hash是唯一的，断开区块时放回的输出也已经从下层存储中删掉或者正等着删掉，
+     * 所以缓存中没有记录时，下层存储中也不会有。
+     *
+     * @throws IllegalArgumentException 输出点已经存在并且没有花费
+     */
+    public synchronized void add(TransactionOutput output, long height) {
+        OutPoint outPoint = OutPoint.of(output);
+        CacheEntry cached = entries.get(outPoint);
+        boolean fresh;
+        if (cached == null) {
+            fresh = true;
+        } else if (cached.entry != null) {
+            throw new IllegalArgumentException("输出已经存在：" + outPoint);
+        } else {
+            // 已经花费但是没有写回时，下层存储中还有旧的输出，新输出必须写回覆盖它
+            fresh = (cached.flags & DIRTY) == 0;
+        }
+        entries.put(outPoint, new CacheEntry(new UTXOEntry(output, height), fresh ? (byte) (DIRTY | FRESH) : DIRTY));
+    }
+
+    /**
+     * 花掉一个输出
+     * 不需要先查下层存储：输出不在缓存中时直接记一个脏的已花费条目，写回时删除。
+     */
+    public synchronized void spend(OutPoint outPoint) {
+        CacheEntry cached = entries.get(outPoint);
+        if (cached != null && (cached.flags & FRESH) != 0) {
+            // 下层存储中没有这个输出，新增和花掉抵消
+            entries.remove(outPoint);
+            return;
+        }
+        entries.put(outPoint, new CacheEntry(null, DIRTY));
+    }
+
+    /**
+     * 连接一个区块：花掉它的输入，新增它的输出，更新最新区块
+     * 不写回下层存储，不会因为磁盘失败而只做了一半。
+     *
+     * @throws IllegalArgumentException 区块新增的输出点重复或者已经存在，此时缓存不变
+     */
+    public synchronized void connectBlock(Block block) {
+        Set<OutPoint> outPoints = new HashSet<>();
+        for (Transaction transaction : block.getTransactions()) {
+            for (TransactionOutput output : transaction.getOutputs()) {
+                OutPoint outPoint = OutPoint.of(output);
+                if (!outPoints.add(outPoint) || isCachedUnspent(outPoint)) {
+                    throw new IllegalArgumentException("输出已经存在：" + outPoint);
+                }
+            }
+        }
+        for (Transaction transaction : block.getTransactions()) {
+            if (transaction.getType() == Transaction.TRANSACTION_TYPE_NORMAL) {
+                for (TransactionInput input : transaction.getInputs()) {
+                    spend(OutPoint.of(input.getUnspentOutput()));
+                }
+            }
+            for (TransactionOutput output : transaction.getOutputs()) {
+                add(output, block.getHeight());
+            }
+        }
+        tipHash = block.getHashValue();
+        tipHeight = block.getHeight();
+        tipDirty = true;
+    }
+
+    /**
+     * 断开最新区块：删掉它新增的输出，放回它花掉的输出，最新区块退回到父区块
+     * 与{@link #connectBlock(Block)}一样只修改内存。
+     *
+     * @param spent 区块的撤销数据，即连接时花掉的输出
+     * @throws IllegalArgumentException 要放回的输出点仍然没有花费，此时缓存不变
+     */
+    public synchronized void disconnectBlock(Block block, List<UTXOEntry> spent) {
+        for (UTXOEntry entry : spent) {
+            OutPoint outPoint = OutPoint.of(entry.getOutput());
+            if (isCachedUnspent(outPoint)) {
+                throw new IllegalArgumentException("输出已经存在：" + outPoint);
+            }
+        }
+        List<Transaction> transactions = block.getTransactions();
+        for (int i = transactions.size() - 1; i >= 0; i--) {
+            for (TransactionOutput output : transactions.get(i).getOutputs()) {
+                spend(OutPoint.of(output));
+            }
+        }
+        for (UTXOEntry entry : spent) {
+            add(entry.getOutput(), entry.getHeight());
+        }
+        tipHash = block.getPreHashValue();
+        tipHeight = block.getHeight() - 1;
+        tipDirty = true;
+    }
+
+    /**
+     * 内存超过预算时写回下层存储
+     * 写回失败时缓存保持原样，下次再写回。
+     */
+    public synchronized void flushIfFull() {
+        if (getMemoryUsage() > memoryBudget) {
+            flush();
+        }
+    }
+
+    /**
+     * 把所有脏的条目和最新区块作为一批写回下层存储，然后清空缓存
+     */
+    public synchronized void flush() {
+        Map<OutPoint, UTXOEntry> changes = new HashMap<>();
+        for (Map.Entry<OutPoint, CacheEntry> cached : entries.entrySet()) {
+            if ((cached.getValue().flags & DIRTY) != 0) {
+                changes.put(cached.getKey(), cached.getValue().entry);
+            }
+        }
+        if (!changes.isEmpty() || tipDirty) {
+            base.batchWrite(changes, tipHash, tipHeight);
+        }
+        entries.clear();
+        tipDirty = false;
+    }
+
+    private boolean isCachedUnspent(OutPoint outPoint) {
+        CacheEntry cached = entries.get(outPoint);
+        return cached != null && cached.entry != null;
+    }
+
+    /**
+     * 缓存对应的最新区块高度，还没有区块时返回-1
+     */
+    public synchronized long getTipHeight() {
+        return tipHeight;
+    }
+
+    /**
+     * 缓存的条目数量，包括已经花费、等待写回的
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 缓存大致占用的内存
+     */
+    public synchronized long getMemoryUsage() {
+        return (long) entries.size() * ENTRY_SIZE;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public UTXOBackingStore getBase() {
+        return base;
+    }
+}
@@ -0,0 +1,26 @@
+package com.milkygreen.blockchain.db;
+
+import com.milkygreen.blockchain.core.TransactionOutput;
+
+/**
+ * 一个未花费输出，以及它所在区块的高度
+ */
+public final class UTXOEntry {
+
+    private final TransactionOutput output;
+
+    private final long height;
+
+    public UTXOEntry(TransactionOutput output, long height) {
+        this.output = output;
+        this.height = height;
+    }
+
+    public TransactionOutput getOutput() {
+        return output;
+    }
+
+    public long getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,406 @@
+package com.milkygreen.blockchain.db;
+
+import com.milkygreen.blockchain.core.Hash256;
+import com.milkygreen.blockchain.core.OutPoint;
+import com.milkygreen.blockchain.core.TransactionOutput;
+import com.milkygreen.blockchain.util.AddressCache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 未花费输出(UTXO)集合
+ * 以前按地址保存一个TransactionOutput的HashSet，判断一个输出是否存在要先取出整个地址的集合，再逐个字段比较，
+ * 每个UTXO都是好几个对象（输出对象、地址字符串、HashSet节点），占用两百字节左右。
+ * 这里不为UTXO创建任何对象：
+ * 1、输出点(交易hash, 索引)和金额保存在{@link Hash256Table}中，按输出点查找也由它完成，条目编号就是UTXO的编号
+ * 2、其他字段按同样的编号保存在几个基本类型数组中，哈希表删除时用最后一个UTXO填补空位，这些数组跟着移动
+ * 3、收款地址不直接保存，而是保存地址编号。每个地址一个{@link AddressEntry}，记录公钥哈希、余额，
+ * 以及该地址所有UTXO组成的双向链表的表头，这就是地址到输出点的二级索引
+ * 所以不管一个地址有多少UTXO，按输出点查找、删除都是O(1)，按地址查询的代价与该地址的UTXO数量成正比。
+ * 高度按32位无符号整数保存。所有方法都是线程安全的。
+ * <p>
+ * 完整的未花费输出在{@link UTXOCache}和链状态存储中，这里只是钱包的地址索引：只保存通过{@link #watch(String)}关注的地址的输出，
+ * 其他地址的输出直接忽略。钱包只保存在内存中，账户都是新生成的，关注之前不会有输出，所以关注时不需要扫描链状态存储。
+ */
+public class UTXOSet {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final long MAX_HEIGHT = 0xffffffffL;
+
+    /**
+     * 输出点-金额
+     */
+    private Hash256Table entries;
+
+    /**
+     * 高度，按32位无符号整数保存
+     */
+    private int[] heights;
+
+    /**
+     * 地址编号
+     */
+    private int[] owners;
+
+    /**
+     * 同一个地址的UTXO链表
+     */
+    private int[] next;
+
+    private int[] prev;
+
+    /**
+     * 公钥哈希-地址
+     */
+    private final Map<ByteBuffer, AddressEntry> addresses = new HashMap<>();
+
+    /**
+     * 地址编号-地址，删除的地址编号会被重新使用
+     */
+    private AddressEntry[] addressEntries = new AddressEntry[16];
+
+    private int[] freeAddressIds = new int[16];
+
+    private int freeAddressCount;
+
+    private int addressCount;
+
+    /**
+     * 关注的地址的公钥哈希
+     */
+    private final Set<ByteBuffer> watched = new HashSet<>();
+
+    /**
+     * 一个地址的公钥哈希、UTXO链表头、数量和余额
+     */
+    private static class AddressEntry {
+
+        final ByteBuffer publicKeyHash;
+
+        final int id;
+
+        int head = -1;
+
+        int count;
+
+        long balance;
+
+        AddressEntry(ByteBuffer publicKeyHash, int id) {
+            this.publicKeyHash = publicKeyHash;
+            this.id = id;
+        }
+    }
+
+    public UTXOSet() {
+        entries = new Hash256Table(INITIAL_CAPACITY);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * 关注一个地址，之后放入的属于这个地址的输出才会保存
+     *
+     * @throws IllegalArgumentException 地址不合法
+     */
+    public synchronized void watch(String address) {
+        byte[] publicKeyHash = AddressCache.publicKeyHash(address);
+        if (publicKeyHash == null) {
+            throw new IllegalArgumentException("非法的地址：" + address);
+        }
+        watched.add(ByteBuffer.wrap(publicKeyHash));
+    }
+
+    /**
+     * 放入一个未花费输出，收款地址没有被关注时忽略
+     *
+     * @param output 输出
+     * @param height 输出所在区块的高度
+     * @return 是否放入了集合：地址被关注，并且集合中原本没有这个输出点
+     * @throws IllegalArgumentException 输出缺少交易hash、收款地址不合法或者高度超出范围
+     */
+    public synchronized boolean add(TransactionOutput output, long height) {
+        Hash256 hash = output.getTransactionHashValue();
+        if (hash == null) {
+            throw new IllegalArgumentException("输出缺少交易hash");
+        }
+        byte[] publicKeyHash = AddressCache.publicKeyHash(output.getAccount());
+        if (publicKeyHash == null) {
+            throw new IllegalArgumentException("非法的地址：" + output.getAccount());
+        }
+        return add(hash, output.getIndex(), output.getAmount(), publicKeyHash, height);
+    }
+
+    /**
+     * 放入一个未花费输出，收款人用20字节的公钥哈希表示，不需要经过地址转换
+     *
+     * @return 是否放入了集合：地址被关注，并且集合中原本没有这个输出点
+     * @throws IllegalArgumentException 高度超出范围
+     */
+    synchronized boolean add(Hash256 hash, int index, long amount, byte[] publicKeyHash, long height) {
+        if (height < 0 || height > MAX_HEIGHT) {
+            throw new IllegalArgumentException("高度超出范围：" + height);
+        }
+        if (!watched.contains(ByteBuffer.wrap(publicKeyHash)) || entries.find(hash, index) >= 0) {
+            return false;
+        }
+        int e = entries.add(hash, index, amount);
+        if (entries.capacity() != heights.length) {
+            allocate(entries.capacity());
+        }
+        heights[e] = (int) height;
+
+        AddressEntry entry = addresses.get(ByteBuffer.wrap(publicKeyHash));
+        if (entry == null) {
+            entry = newAddress(ByteBuffer.wrap(publicKeyHash));
+        }
+        owners[e] = entry.id;
+        next[e] = entry.head;
+        prev[e] = -1;
+        if (entry.head >= 0) {
+            prev[entry.head] = e;
+        }
+        entry.head = e;
+        entry.count++;
+        entry.balance += amount;
+        return true;
+    }
+
+    /**
+     * 删除一个输出点
+     *
+     * @return 集合中是否有这个输出点
+     */
+    public synchronized boolean remove(OutPoint outPoint) {
+        int e = entries.find(outPoint.getTransactionHash(), outPoint.getIndex());
+        if (e < 0) {
+            return false;
+        }
+        AddressEntry entry = addressEntries[owners[e]];
+        unlink(entry, e);
+        entry.balance -= entries.getValue(e);
+        if (--entry.count == 0) {
+            freeAddress(entry);
+        }
+
+        // 哈希表用最后一个UTXO填补空位，其他列跟着移动
+        int moved = entries.remove(e);
+        if (moved >= 0) {
+            move(moved, e);
+        }
+        return true;
+    }
+
+    /**
+     * 删除一个输出
+     *
+     * @return 集合中是否有这个输出点
+     */
+    public boolean remove(TransactionOutput output) {
+        return output.getTransactionHashValue() != null && remove(OutPoint.of(output));
+    }
+
+    /**
+     * 输出是否未花费：输出点存在，并且金额、收款地址都与集合中的一致
+     */
+    public synchronized boolean contains(TransactionOutput output) {
+        Hash256 hash = output.getTransactionHashValue();
+        if (hash == null) {
+            return false;
+        }
+        int e = entries.find(hash, output.getIndex());
+        if (e < 0) {
+            return false;
+        }
+        AddressEntry entry = entry(output.getAccount());
+        return entries.getValue(e) == output.getAmount() && entry != null && owners[e] == entry.id;
+    }
+
+    /**
+     * 输出点是否未花费
+     */
+    public synchronized boolean contains(OutPoint outPoint) {
+        return entries.find(outPoint.getTransactionHash(), outPoint.getIndex()) >= 0;
+    }
+
+    /**
+     * 查询输出点对应的输出
+     *
+     * @return 已经花费或者不存在时返回null
+     */
+    public synchronized TransactionOutput get(OutPoint outPoint) {
+        int e = entries.find(outPoint.getTransactionHash(), outPoint.getIndex());
+        if (e < 0) {
+            return null;
+        }
+        byte[] publicKeyHash = addressEntries[owners[e]].publicKeyHash.array();
+        return toOutput(e, AddressCache.address(publicKeyHash));
+    }
+
+    /**
+     * 输出所在区块的高度
+     *
+     * @return 已经花费或者不存在时返回-1
+     */
+    public synchronized long getHeight(OutPoint outPoint) {
+        int e = entries.find(outPoint.getTransactionHash(), outPoint.getIndex());
+        return e < 0 ? -1 : heights[e] & MAX_HEIGHT;
+    }
+
+    public synchronized UTXOEntry getEntry(OutPoint outPoint) {
+        int e = entries.find(outPoint.getTransactionHash(), outPoint.getIndex());
+        if (e < 0) {
+            return null;
+        }
+        byte[] publicKeyHash = addressEntries[owners[e]].publicKeyHash.array();
+        return new UTXOEntry(toOutput(e, AddressCache.address(publicKeyHash)), heights[e] & MAX_HEIGHT);
+    }
+
+    /**
+     * 查询一个地址的所有未花费输出，最新放入的在前面
+     *
+     * @return 输出列表，地址不合法或者没有输出时返回空列表
+     */
+    public synchronized List<TransactionOutput> getOutputs(String address) {
+        AddressEntry entry = entry(address);
+        if (entry == null) {
+            return new ArrayList<>();
+        }
+        List<TransactionOutput> outputs = new ArrayList<>(entry.count);
+        for (int e = entry.head; e >= 0; e = next[e]) {
+            outputs.add(toOutput(e, address));
+        }
+        return outputs;
+    }
+
+    /**
+     * 地址的余额，即所有未花费输出的金额之和，时间复杂度O(1)
+     */
+    public synchronized long getBalance(String address) {
+        AddressEntry entry = entry(address);
+        return entry == null ? 0 : entry.balance;
+    }
+
+    /**
+     * 地址的未花费输出数量
+     */
+    public synchronized int count(String address) {
+        AddressEntry entry = entry(address);
+        return entry == null ? 0 : entry.count;
+    }
+
+    /**
+     * 未花费输出总数
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.size() == 0;
+    }
+
+    /**
+     * 清空集合
+     */
+    public synchronized void clear() {
+        entries = new Hash256Table(INITIAL_CAPACITY);
+        heights = null;
+        allocate(INITIAL_CAPACITY);
+        addresses.clear();
+        Arrays.fill(addressEntries, null);
+        addressCount = 0;
+        freeAddressCount = 0;
+    }
+
+    private AddressEntry entry(String address) {
+        byte[] publicKeyHash = AddressCache.publicKeyHash(address);
+        return publicKeyHash == null ? null : addresses.get(ByteBuffer.wrap(publicKeyHash));
+    }
+
+    private TransactionOutput toOutput(int e, String address) {
+        TransactionOutput output = new TransactionOutput();
+        output.setTransactionHashValue(entries.getHash(e));
+        output.setIndex(entries.getIndex(e));
+        output.setAmount(entries.getValue(e));
+        output.setAccount(address);
+        return output;
+    }
+
+    /**
+     * 哈希表已经把编号from的UTXO移到了to，其他列也移过去，并更新地址链表中对它的引用
+     */
+    private void move(int from, int to) {
+        heights[to] = heights[from];
+        owners[to] = owners[from];
+        next[to] = next[from];
+        prev[to] = prev[from];
+        if (prev[to] >= 0) {
+            next[prev[to]] = to;
+        } else {
+            addressEntries[owners[to]].head = to;
+        }
+        if (next[to] >= 0) {
+            prev[next[to]] = to;
+        }
+    }
+
+    private void unlink(AddressEntry entry, int e) {
+        if (prev[e] >= 0) {
+            next[prev[e]] = next[e];
+        } else {
+            entry.head = next[e];
+        }
+        if (next[e] >= 0) {
+            prev[next[e]] = prev[e];
+        }
+    }
+
+    private AddressEntry newAddress(ByteBuffer publicKeyHash) {
+        int id;
+        if (freeAddressCount > 0) {
+            id = freeAddressIds[--freeAddressCount];
+        } else {
+            id = addressCount++;
+            if (id == addressEntries.length) {
+                addressEntries = Arrays.copyOf(addressEntries, id * 2);
+            }
+        }
+        AddressEntry entry = new AddressEntry(publicKeyHash, id);
+        addressEntries[id] = entry;
+        addresses.put(publicKeyHash, entry);
+        return entry;
+    }
+
+    private void freeAddress(AddressEntry entry) {
+        addresses.remove(entry.publicKeyHash);
+        addressEntries[entry.id] = null;
+        if (freeAddressCount == freeAddressIds.length) {
+            freeAddressIds = Arrays.copyOf(freeAddressIds, freeAddressCount * 2);
+        }
+        freeAddressIds[freeAddressCount++] = entry.id;
+    }
+
+    /**
+     * 分配容量为capacity的数组，保留已有的UTXO
+     */
+    private void allocate(int capacity) {
+        if (heights == null || entries.size() == 0) {
+            heights = new int[capacity];
+            owners = new int[capacity];
+            next = new int[capacity];
+            prev = new int[capacity];
+            return;
+        }
+        heights = Arrays.copyOf(heights, capacity);
+        owners = Arrays.copyOf(owners, capacity);
+        next = Arrays.copyOf(next, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+    }
+}
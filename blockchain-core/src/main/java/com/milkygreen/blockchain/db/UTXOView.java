@@ -0,0 +1,64 @@
+package com.milkygreen.blockchain.db;
+
+import com.milkygreen.blockchain.core.OutPoint;
+import com.milkygreen.blockchain.core.TransactionOutput;
+import com.milkygreen.blockchain.util.AddressCache;
+
+import java.util.Arrays;
+
+/**
+ * 按输出点查询未花费输出的视图
+ * 视图可以一层叠一层：上层在内存中保存最近用到的和修改过的输出，查不到时再去查下层。
+ */
+public interface UTXOView {
+
+    /**
+     * 查询输出点对应的未花费输出
+     *
+     * @return 已经花费或者不存在时返回null
+     */
+    UTXOEntry getEntry(OutPoint outPoint);
+
+    /**
+     * 查询输出点对应的输出
+     *
+     * @return 已经花费或者不存在时返回null
+     */
+    default TransactionOutput get(OutPoint outPoint) {
+        UTXOEntry entry = getEntry(outPoint);
+        return entry == null ? null : entry.getOutput();
+    }
+
+    /**
+     * 输出所在区块的高度
+     *
+     * @return 已经花费或者不存在时返回-1
+     */
+    default long getHeight(OutPoint outPoint) {
+        UTXOEntry entry = getEntry(outPoint);
+        return entry == null ? -1 : entry.getHeight();
+    }
+
+    /**
+     * 输出点是否未花费
+     */
+    default boolean contains(OutPoint outPoint) {
+        return getEntry(outPoint) != null;
+    }
+
+    /**
+     * 输出是否未花费：输出点存在，并且金额、收款地址都与视图中的一致
+     */
+    default boolean contains(TransactionOutput output) {
+        if (output.getTransactionHashValue() == null) {
+            return false;
+        }
+        UTXOEntry entry = getEntry(OutPoint.of(output));
+        if (entry == null || entry.getOutput().getAmount() != output.getAmount()) {
+            return false;
+        }
+        byte[] publicKeyHash = AddressCache.publicKeyHash(output.getAccount());
+        return publicKeyHash != null
+                && Arrays.equals(publicKeyHash, AddressCache.publicKeyHash(entry.getOutput().getAccount()));
+    }
+}
@@ -0,0 +1,89 @@
+package com.milkygreen.blockchain.db;
+
+import com.milkygreen.blockchain.core.Hash256;
+import com.milkygreen.blockchain.core.TransactionOutput;
+import com.milkygreen.blockchain.util.AddressCache;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 区块的撤销数据：连接区块时被花掉的未花费输出
+ * 断开一个区块时，删掉它新增的输出，再把撤销数据中的输出放回去，UTXO就回到了连接这个区块之前的状态，
+ * 不需要从创世区块开始重建。代价只与被断开的区块大小有关。
+ * 数据保存在{@link KVStore}中，key是区块hash，value是 数量(4字节)，然后每个输出依次是
+ * 交易hash(32字节) | 输出序号(4字节) | 区块高度(4字节) | 金额(8字节) | 收款人公钥哈希(20字节)，顺序与区块中的input一致。
+ */
+public class UndoStore implements Closeable {
+
+    private static final int ENTRY_LENGTH = Hash256.LENGTH + 4 + 4 + 8 + AddressCache.PUBLIC_KEY_HASH_LENGTH;
+
+    private final KVStore store;
+
+    public UndoStore(Path directory) {
+        this.store = new KVStore(directory);
+    }
+
+    /**
+     * 保存区块的撤销数据
+     *
+     * @param spent 区块花掉的输出，按input的顺序
+     * @throws IllegalArgumentException 输出的收款地址不合法
+     */
+    public void put(Hash256 blockHash, List<UTXOEntry> spent) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + spent.size() * ENTRY_LENGTH);
+        buffer.putInt(spent.size());
+        for (UTXOEntry entry : spent) {
+            TransactionOutput output = entry.getOutput();
+            byte[] publicKeyHash = AddressCache.publicKeyHash(output.getAccount());
+            if (publicKeyHash == null) {
+                throw new IllegalArgumentException("非法的地址：" + output.getAccount());
+            }
+            output.getTransactionHashValue().writeTo(buffer);
+            buffer.putInt(output.getIndex());
+            buffer.putInt((int) entry.getHeight());
+            buffer.putLong(output.getAmount());
+            buffer.put(publicKeyHash);
+        }
+        store.put(blockHash.toBytes(), buffer.array());
+    }
+
+    /**
+     * 读取区块的撤销数据
+     *
+     * @return 没有时返回null
+     */
+    public List<UTXOEntry> get(Hash256 blockHash) {
+        byte[] value = store.get(blockHash.toBytes());
+        if (value == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        int count = buffer.getInt();
+        List<UTXOEntry> spent = new ArrayList<>(count);
+        byte[] publicKeyHash = new byte[AddressCache.PUBLIC_KEY_HASH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            TransactionOutput output = new TransactionOutput();
+            output.setTransactionHashValue(Hash256.read(buffer));
+            output.setIndex(buffer.getInt());
+            long height = buffer.getInt() & 0xffffffffL;
+            output.setAmount(buffer.getLong());
+            buffer.get(publicKeyHash);
+            output.setAccount(AddressCache.address(publicKeyHash));
+            spent.add(new UTXOEntry(output, height));
+        }
+        return spent;
+    }
+
+    public boolean contains(Hash256 blockHash) {
+        return store.get(blockHash.toBytes()) != null;
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+}
@@ -0,0 +1,125 @@
+package com.milkygreen.blockchain.db;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一批写操作
+ * {@link KVStore#write(WriteBatch)}把整批操作作为预写日志中的一条记录写入，崩溃之后要么全部生效，要么全部不生效。
+ * 同一批中对同一个key的多次操作，后面的覆盖前面的。
+ */
+public class WriteBatch {
+
+    private static final byte DELETE = 0;
+
+    private static final byte PUT = 1;
+
+    private final List<byte[]> keys = new ArrayList<>();
+
+    /**
+     * null表示删除
+     */
+    private final List<byte[]> values = new ArrayList<>();
+
+    private int encodedSize = 4;
+
+    public WriteBatch put(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("key和value不能为null");
+        }
+        keys.add(key);
+        values.add(value);
+        encodedSize += 1 + 4 + key.length + 4 + value.length;
+        return this;
+    }
+
+    public WriteBatch delete(byte[] key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key不能为null");
+        }
+        keys.add(key);
+        values.add(null);
+        encodedSize += 1 + 4 + key.length;
+        return this;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    byte[] key(int i) {
+        return keys.get(i);
+    }
+
+    /**
+     * 第i个操作的value，删除操作返回null
+     */
+    byte[] value(int i) {
+        return values.get(i);
+    }
+
+    /**
+     * 编码之后的字节数
+     */
+    int encodedSize() {
+        return encodedSize;
+    }
+
+    /**
+     * 编码格式：操作数量(4字节)，然后每个操作依次是 类型(1字节) | key长度(4字节) | key | value长度(4字节) | value，删除操作没有value
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i);
+            byte[] value = values.get(i);
+            buffer.put(value == null ? DELETE : PUT);
+            buffer.putInt(key.length);
+            buffer.put(key);
+            if (value != null) {
+                buffer.putInt(value.length);
+                buffer.put(value);
+            }
+        }
+    }
+
+    /**
+     * 从buffer当前位置解码
+     *
+     * @throws IllegalArgumentException 数据不合法
+     */
+    static WriteBatch read(ByteBuffer buffer) {
+        WriteBatch batch = new WriteBatch();
+        int count = buffer.getInt();
+        if (count < 0) {
+            throw new IllegalArgumentException("操作数量不合法：" + count);
+        }
+        for (int i = 0; i < count; i++) {
+            byte type = buffer.get();
+            byte[] key = readBytes(buffer);
+            if (type == PUT) {
+                batch.put(key, readBytes(buffer));
+            } else if (type == DELETE) {
+                batch.delete(key);
+            } else {
+                throw new IllegalArgumentException("未知的操作类型：" + type);
+            }
+        }
+        return batch;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("长度不合法：" + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
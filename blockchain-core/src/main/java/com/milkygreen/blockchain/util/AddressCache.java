@@ -0,0 +1,74 @@
+package com.milkygreen.blockchain.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 地址与公钥哈希的互相转换缓存
+ * 地址与公钥哈希互相转换需要Base58编解码和两次SHA-256。二进制编码、UTXO集合都只保存20字节的公钥哈希，
+ * 同一个地址会反复出现（付款人、找零，同一个区块先后被存储、广播），所以把最近转换过的地址缓存起来。
+ * 返回的数组是缓存中的对象，调用方不能修改。所有方法都是线程安全的。
+ */
+public class AddressCache {
+
+    /**
+     * 公钥哈希长度
+     */
+    public static final int PUBLIC_KEY_HASH_LENGTH = 20;
+
+    /**
+     * 每个方向的缓存条目数量上限
+     */
+    public static final int MAXIMUM_SIZE = 10_000;
+
+    private static final Cache<String, byte[]> ADDRESS_TO_PUBLIC_KEY_HASH = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .build();
+
+    private static final Cache<ByteBuffer, String> PUBLIC_KEY_HASH_TO_ADDRESS = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .build();
+
+    /**
+     * 地址对应的20字节公钥哈希
+     *
+     * @return 地址不合法时返回null
+     */
+    public static byte[] publicKeyHash(String address) {
+        if (address == null) {
+            return null;
+        }
+        byte[] publicKeyHash = ADDRESS_TO_PUBLIC_KEY_HASH.getIfPresent(address);
+        if (publicKeyHash == null) {
+            publicKeyHash = CryptoUtil.publicKeyHashBytesFromAddress(address);
+            if (publicKeyHash == null) {
+                return null;
+            }
+            put(address, publicKeyHash);
+        }
+        return publicKeyHash;
+    }
+
+    /**
+     * 20字节公钥哈希对应的地址
+     */
+    public static String address(byte[] publicKeyHash) {
+        if (publicKeyHash.length != PUBLIC_KEY_HASH_LENGTH) {
+            throw new IllegalArgumentException("公钥哈希长度必须是20字节，实际是" + publicKeyHash.length);
+        }
+        String address = PUBLIC_KEY_HASH_TO_ADDRESS.getIfPresent(ByteBuffer.wrap(publicKeyHash));
+        if (address == null) {
+            byte[] copy = publicKeyHash.clone();
+            address = CryptoUtil.addressFromPublicKeyHash(copy);
+            put(address, copy);
+        }
+        return address;
+    }
+
+    private static void put(String address, byte[] publicKeyHash) {
+        ADDRESS_TO_PUBLIC_KEY_HASH.put(address, publicKeyHash);
+        PUBLIC_KEY_HASH_TO_ADDRESS.put(ByteBuffer.wrap(publicKeyHash), address);
+    }
+}
@@ -0,0 +1,558 @@
+package com.milkygreen.blockchain.util;
+
+import com.milkygreen.blockchain.core.Block;
+import com.milkygreen.blockchain.core.Hash256;
+import com.milkygreen.blockchain.core.Transaction;
+import com.milkygreen.blockchain.core.TransactionInput;
+import com.milkygreen.blockchain.core.TransactionOutput;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 区块和交易的二进制编解码
+ * 用于存储和网络传输，比Java序列化和JSON都紧凑得多：
+ * 1、hash按32字节原始数据保存，而不是64个字符的十六进制字符串
+ * 2、地址只保存20字节的公钥哈希，解码时重新生成Base58地址
+ * 3、高度、时间戳、金额、数量等整数使用变长编码(varint)，每字节7位有效数据，最高位表示后面还有没有字节
+ * 4、交易中input、output所属的交易hash与交易本身相同时不重复保存
+ * 可能为null的字段用一个标志字节记录是否存在，解码之后与编码之前的对象完全一致。
+ * 区块和交易的编码以1字节的格式版本开头，input、output只作为它们的一部分出现，没有版本号。
+ * 编码直接写入调用方提供的ByteBuffer，不创建中间数组；数据不合法时抛出IllegalArgumentException。
+ */
+public class BinaryCodec {
+
+    /**
+     * 编码格式版本
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * hash长度
+     */
+    public static final int HASH_LENGTH = 32;
+
+    /**
+     * 公钥哈希长度
+     */
+    public static final int PUBLIC_KEY_HASH_LENGTH = AddressCache.PUBLIC_KEY_HASH_LENGTH;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int BLOCK_HASH = 1;
+    private static final int BLOCK_PRE_HASH = 1 << 1;
+    private static final int BLOCK_MERKLE_TREE = 1 << 2;
+    private static final int BLOCK_TRANSACTIONS = 1 << 3;
+
+    private static final int TRANSACTION_HASH = 1;
+    private static final int TRANSACTION_PAYEE = 1 << 1;
+    private static final int TRANSACTION_INPUTS = 1 << 2;
+    private static final int TRANSACTION_OUTPUTS = 1 << 3;
+
+    /**
+     * input、output所属的交易hash与外层交易相同，没有单独保存
+     */
+    private static final int SAME_TRANSACTION_HASH = 1;
+    private static final int OWN_TRANSACTION_HASH = 1 << 1;
+
+    private static final int INPUT_PUBLIC_KEY = 1 << 2;
+    private static final int INPUT_SIGNATURE = 1 << 3;
+    private static final int INPUT_UNSPENT_OUTPUT = 1 << 4;
+
+    private static final int OUTPUT_ACCOUNT = 1 << 2;
+
+    // ---------------------------------------------------------------- 区块
+
+    /**
+     * 编码区块
+     */
+    public static byte[] encodeBlock(Block block) {
+        byte[] bytes = new byte[sizeOfBlock(block)];
+        writeBlock(ByteBuffer.wrap(bytes), block);
+        return bytes;
+    }
+
+    public static Block decodeBlock(byte[] bytes) {
+        return readBlock(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * 区块编码之后的字节数
+     */
+    public static int sizeOfBlock(Block block) {
+        int size = 2 + sizeOfVarLong(block.getHeight()) + sizeOfVarLong(block.getTimestamp()) + 8 + 1;
+        size += block.getHashValue() == null ? 0 : HASH_LENGTH;
+        size += block.getPreHashValue() == null ? 0 : HASH_LENGTH;
+        size += block.getMerkleTreeValue() == null ? 0 : HASH_LENGTH;
+        List<Transaction> transactions = block.getTransactions();
+        if (transactions != null) {
+            size += sizeOfVarLong(transactions.size());
+            for (Transaction transaction : transactions) {
+                size += sizeOfTransactionBody(transaction);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 区块写入buffer当前位置
+     */
+    public static void writeBlock(ByteBuffer buffer, Block block) {
+        buffer.put(VERSION);
+        List<Transaction> transactions = block.getTransactions();
+        int flags = (block.getHashValue() == null ? 0 : BLOCK_HASH)
+                | (block.getPreHashValue() == null ? 0 : BLOCK_PRE_HASH)
+                | (block.getMerkleTreeValue() == null ? 0 : BLOCK_MERKLE_TREE)
+                | (transactions == null ? 0 : BLOCK_TRANSACTIONS);
+        buffer.put((byte) flags);
+        if (block.getHashValue() != null) {
+            writeHash(buffer, block.getHashValue());
+        }
+        if (block.getPreHashValue() != null) {
+            writeHash(buffer, block.getPreHashValue());
+        }
+        writeVarLong(buffer, block.getHeight());
+        writeVarLong(buffer, block.getTimestamp());
+        buffer.putLong(block.getNonce());
+        if (block.getMerkleTreeValue() != null) {
+            writeHash(buffer, block.getMerkleTreeValue());
+        }
+        buffer.put((byte) block.getType());
+        if (transactions != null) {
+            writeVarLong(buffer, transactions.size());
+            for (Transaction transaction : transactions) {
+                writeTransactionBody(buffer, transaction);
+            }
+        }
+    }
+
+    /**
+     * 从buffer当前位置读取区块
+     */
+    public static Block readBlock(ByteBuffer buffer) {
+        return readBlock(buffer, true);
+    }
+
+    /**
+     * 从buffer当前位置读取区块头，不解码交易列表，返回的区块transactions为null
+     */
+    public static Block readBlockHeader(ByteBuffer buffer) {
+        return readBlock(buffer, false);
+    }
+
+    private static Block readBlock(ByteBuffer buffer, boolean withTransactions) {
+        readVersion(buffer);
+        int flags = buffer.get();
+        Block block = new Block();
+        if ((flags & BLOCK_HASH) != 0) {
+            block.setHashValue(readHash(buffer));
+        }
+        if ((flags & BLOCK_PRE_HASH) != 0) {
+            block.setPreHashValue(readHash(buffer));
+        }
+        block.setHeight(readVarLong(buffer));
+        block.setTimestamp(readVarLong(buffer));
+        block.setNonce(buffer.getLong());
+        if ((flags & BLOCK_MERKLE_TREE) != 0) {
+            block.setMerkleTreeValue(readHash(buffer));
+        }
+        block.setType(buffer.get());
+        if (withTransactions && (flags & BLOCK_TRANSACTIONS) != 0) {
+            int count = readCount(buffer);
+            List<Transaction> transactions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                transactions.add(readTransactionBody(buffer));
+            }
+            block.setTransactions(transactions);
+        }
+        return block;
+    }
+
+    // ---------------------------------------------------------------- 交易
+
+    /**
+     * 编码交易
+     */
+    public static byte[] encodeTransaction(Transaction transaction) {
+        byte[] bytes = new byte[sizeOfTransaction(transaction)];
+        writeTransaction(ByteBuffer.wrap(bytes), transaction);
+        return bytes;
+    }
+
+    public static Transaction decodeTransaction(byte[] bytes) {
+        return readTransaction(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * 交易编码之后的字节数
+     */
+    public static int sizeOfTransaction(Transaction transaction) {
+        return 1 + sizeOfTransactionBody(transaction);
+    }
+
+    /**
+     * 交易写入buffer当前位置
+     */
+    public static void writeTransaction(ByteBuffer buffer, Transaction transaction) {
+        buffer.put(VERSION);
+        writeTransactionBody(buffer, transaction);
+    }
+
+    /**
+     * 从buffer当前位置读取交易
+     */
+    public static Transaction readTransaction(ByteBuffer buffer) {
+        readVersion(buffer);
+        return readTransactionBody(buffer);
+    }
+
+    private static int sizeOfTransactionBody(Transaction transaction) {
+        int size = 2 + sizeOfVarLong(transaction.getAmount()) + sizeOfVarLong(transaction.getTimestamp()) + 8;
+        Hash256 hash = transaction.getHashValue();
+        size += hash == null ? 0 : HASH_LENGTH;
+        size += transaction.getPayee() == null ? 0 : PUBLIC_KEY_HASH_LENGTH;
+        if (transaction.getInputs() != null) {
+            size += sizeOfVarLong(transaction.getInputs().size());
+            for (TransactionInput input : transaction.getInputs()) {
+                size += sizeOfTransactionInput(input, hash);
+            }
+        }
+        if (transaction.getOutputs() != null) {
+            size += sizeOfVarLong(transaction.getOutputs().size());
+            for (TransactionOutput output : transaction.getOutputs()) {
+                size += sizeOfTransactionOutput(output, hash);
+            }
+        }
+        return size;
+    }
+
+    private static void writeTransactionBody(ByteBuffer buffer, Transaction transaction) {
+        Hash256 hash = transaction.getHashValue();
+        List<TransactionInput> inputs = transaction.getInputs();
+        List<TransactionOutput> outputs = transaction.getOutputs();
+        int flags = (hash == null ? 0 : TRANSACTION_HASH)
+                | (transaction.getPayee() == null ? 0 : TRANSACTION_PAYEE)
+                | (inputs == null ? 0 : TRANSACTION_INPUTS)
+                | (outputs == null ? 0 : TRANSACTION_OUTPUTS);
+        buffer.put((byte) flags);
+        if (hash != null) {
+            writeHash(buffer, hash);
+        }
+        buffer.put((byte) transaction.getType());
+        writeVarLong(buffer, transaction.getAmount());
+        writeVarLong(buffer, transaction.getTimestamp());
+        buffer.putLong(transaction.getNonce());
+        if (transaction.getPayee() != null) {
+            writeAddress(buffer, transaction.getPayee());
+        }
+        if (inputs != null) {
+            writeVarLong(buffer, inputs.size());
+            for (TransactionInput input : inputs) {
+                writeTransactionInput(buffer, input, hash);
+            }
+        }
+        if (outputs != null) {
+            writeVarLong(buffer, outputs.size());
+            for (TransactionOutput output : outputs) {
+                writeTransactionOutput(buffer, output, hash);
+            }
+        }
+    }
+
+    private static Transaction readTransactionBody(ByteBuffer buffer) {
+        int flags = buffer.get();
+        Transaction transaction = new Transaction();
+        Hash256 hash = null;
+        if ((flags & TRANSACTION_HASH) != 0) {
+            hash = readHash(buffer);
+            transaction.setHashValue(hash);
+        }
+        transaction.setType(buffer.get());
+        transaction.setAmount(readVarLong(buffer));
+        transaction.setTimestamp(readVarLong(buffer));
+        transaction.setNonce(buffer.getLong());
+        if ((flags & TRANSACTION_PAYEE) != 0) {
+            transaction.setPayee(readAddress(buffer));
+        }
+        if ((flags & TRANSACTION_INPUTS) != 0) {
+            int count = readCount(buffer);
+            List<TransactionInput> inputs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                inputs.add(readTransactionInput(buffer, hash));
+            }
+            transaction.setInputs(inputs);
+        }
+        if ((flags & TRANSACTION_OUTPUTS) != 0) {
+            int count = readCount(buffer);
+            List<TransactionOutput> outputs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                outputs.add(readTransactionOutput(buffer, hash));
+            }
+            transaction.setOutputs(outputs);
+        }
+        return transaction;
+    }
+
+    // ---------------------------------------------------------------- 交易输入、输出
+
+    /**
+     * 交易输入编码之后的字节数
+     *
+     * @param parentHash 所属交易的hash，input的交易hash与它相同时不保存，可以为null
+     */
+    public static int sizeOfTransactionInput(TransactionInput input, Hash256 parentHash) {
+        int size = 2 + sizeOfTransactionHash(input.getTransactionHashValue(), parentHash);
+        if (input.getPublicKey() != null) {
+            size += sizeOfHex(input.getPublicKey());
+        }
+        if (input.getSignature() != null) {
+            size += sizeOfHex(input.getSignature());
+        }
+        if (input.getUnspentOutput() != null) {
+            size += sizeOfTransactionOutput(input.getUnspentOutput(), null);
+        }
+        return size;
+    }
+
+    /**
+     * 交易输入写入buffer当前位置
+     *
+     * @param parentHash 所属交易的hash，可以为null
+     */
+    public static void writeTransactionInput(ByteBuffer buffer, TransactionInput input, Hash256 parentHash) {
+        int flags = transactionHashFlag(input.getTransactionHashValue(), parentHash)
+                | (input.getPublicKey() == null ? 0 : INPUT_PUBLIC_KEY)
+                | (input.getSignature() == null ? 0 : INPUT_SIGNATURE)
+                | (input.getUnspentOutput() == null ? 0 : INPUT_UNSPENT_OUTPUT);
+        buffer.put((byte) flags);
+        if ((flags & OWN_TRANSACTION_HASH) != 0) {
+            writeHash(buffer, input.getTransactionHashValue());
+        }
+        buffer.put((byte) input.getSignatureType());
+        if (input.getPublicKey() != null) {
+            writeHex(buffer, input.getPublicKey());
+        }
+        if (input.getSignature() != null) {
+            writeHex(buffer, input.getSignature());
+        }
+        if (input.getUnspentOutput() != null) {
+            writeTransactionOutput(buffer, input.getUnspentOutput(), null);
+        }
+    }
+
+    /**
+     * 从buffer当前位置读取交易输入
+     *
+     * @param parentHash 编码时传入的所属交易hash
+     */
+    public static TransactionInput readTransactionInput(ByteBuffer buffer, Hash256 parentHash) {
+        int flags = buffer.get();
+        TransactionInput input = new TransactionInput();
+        input.setTransactionHashValue(readTransactionHash(buffer, flags, parentHash));
+        input.setSignatureType(buffer.get());
+        if ((flags & INPUT_PUBLIC_KEY) != 0) {
+            input.setPublicKey(readHex(buffer));
+        }
+        if ((flags & INPUT_SIGNATURE) != 0) {
+            input.setSignature(readHex(buffer));
+        }
+        if ((flags & INPUT_UNSPENT_OUTPUT) != 0) {
+            input.setUnspentOutput(readTransactionOutput(buffer, null));
+        }
+        return input;
+    }
+
+    /**
+     * 交易输出编码之后的字节数
+     *
+     * @param parentHash 所属交易的hash，output的交易hash与它相同时不保存，可以为null
+     */
+    public static int sizeOfTransactionOutput(TransactionOutput output, Hash256 parentHash) {
+        int size = 1 + sizeOfTransactionHash(output.getTransactionHashValue(), parentHash)
+                + sizeOfVarLong(output.getIndex() & 0xffffffffL) + sizeOfVarLong(output.getAmount());
+        return output.getAccount() == null ? size : size + PUBLIC_KEY_HASH_LENGTH;
+    }
+
+    /**
+     * 交易输出写入buffer当前位置
+     *
+     * @param parentHash 所属交易的hash，可以为null
+     */
+    public static void writeTransactionOutput(ByteBuffer buffer, TransactionOutput output, Hash256 parentHash) {
+        int flags = transactionHashFlag(output.getTransactionHashValue(), parentHash)
+                | (output.getAccount() == null ? 0 : OUTPUT_ACCOUNT);
+        buffer.put((byte) flags);
+        if ((flags & OWN_TRANSACTION_HASH) != 0) {
+            writeHash(buffer, output.getTransactionHashValue());
+        }
+        writeVarLong(buffer, output.getIndex() & 0xffffffffL);
+        writeVarLong(buffer, output.getAmount());
+        if (output.getAccount() != null) {
+            writeAddress(buffer, output.getAccount());
+        }
+    }
+
+    /**
+     * 从buffer当前位置读取交易输出
+     *
+     * @param parentHash 编码时传入的所属交易hash
+     */
+    public static TransactionOutput readTransactionOutput(ByteBuffer buffer, Hash256 parentHash) {
+        int flags = buffer.get();
+        TransactionOutput output = new TransactionOutput();
+        output.setTransactionHashValue(readTransactionHash(buffer, flags, parentHash));
+        output.setIndex((int) readVarLong(buffer));
+        output.setAmount(readVarLong(buffer));
+        if ((flags & OUTPUT_ACCOUNT) != 0) {
+            output.setAccount(readAddress(buffer));
+        }
+        return output;
+    }
+
+    private static int transactionHashFlag(Hash256 hash, Hash256 parentHash) {
+        if (hash == null) {
+            return 0;
+        }
+        return hash.equals(parentHash) ? SAME_TRANSACTION_HASH : OWN_TRANSACTION_HASH;
+    }
+
+    private static int sizeOfTransactionHash(Hash256 hash, Hash256 parentHash) {
+        return hash == null || hash.equals(parentHash) ? 0 : HASH_LENGTH;
+    }
+
+    private static Hash256 readTransactionHash(ByteBuffer buffer, int flags, Hash256 parentHash) {
+        if ((flags & SAME_TRANSACTION_HASH) != 0) {
+            if (parentHash == null) {
+                throw new IllegalArgumentException("缺少所属交易的hash");
+            }
+            return parentHash;
+        }
+        if ((flags & OWN_TRANSACTION_HASH) != 0) {
+            return readHash(buffer);
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------- 基本类型
+
+    /**
+     * varint编码之后的字节数，负数按无符号处理，固定10字节
+     */
+    public static int sizeOfVarLong(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * 写入varint：每字节低7位是数据，最高位为1表示后面还有字节，低位在前
+     */
+    public static void writeVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint超过10个字节");
+    }
+
+    private static int readCount(ByteBuffer buffer) {
+        long count = readVarLong(buffer);
+        // 每个元素至少占一个字节，数量不可能超过剩余字节数，防止恶意数据导致分配超大的列表
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalArgumentException("元素数量不合法：" + count);
+        }
+        return (int) count;
+    }
+
+    private static void readVersion(ByteBuffer buffer) {
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("不支持的编码版本：" + version);
+        }
+    }
+
+    /**
+     * hash直接写入32字节原始数据，不带长度
+     */
+    private static void writeHash(ByteBuffer buffer, Hash256 hash) {
+        hash.writeTo(buffer);
+    }
+
+    private static Hash256 readHash(ByteBuffer buffer) {
+        return Hash256.read(buffer);
+    }
+
+    /**
+     * 变长十六进制字段（公钥、签名）：varint长度 + 原始字节
+     */
+    private static int sizeOfHex(String hex) {
+        int length = hex.length() / 2;
+        return sizeOfVarLong(length) + length;
+    }
+
+    private static void writeHex(ByteBuffer buffer, String hex) {
+        if ((hex.length() & 1) != 0) {
+            throw new IllegalArgumentException("十六进制字符串长度不是偶数：" + hex);
+        }
+        writeVarLong(buffer, hex.length() / 2);
+        putHex(buffer, hex);
+    }
+
+    private static String readHex(ByteBuffer buffer) {
+        return getHex(buffer, readCount(buffer));
+    }
+
+    private static void putHex(ByteBuffer buffer, String hex) {
+        for (int i = 0; i < hex.length(); i += 2) {
+            int high = Character.digit(hex.charAt(i), 16);
+            int low = Character.digit(hex.charAt(i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("非法的十六进制字符串：" + hex);
+            }
+            buffer.put((byte) ((high << 4) | low));
+        }
+    }
+
+    private static String getHex(ByteBuffer buffer, int length) {
+        char[] chars = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = buffer.get() & 0xff;
+            chars[i * 2] = HEX[b >>> 4];
+            chars[i * 2 + 1] = HEX[b & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 地址只保存20字节的公钥哈希
+     */
+    private static void writeAddress(ByteBuffer buffer, String address) {
+        byte[] publicKeyHash = AddressCache.publicKeyHash(address);
+        if (publicKeyHash == null) {
+            throw new IllegalArgumentException("非法的地址：" + address);
+        }
+        buffer.put(publicKeyHash);
+    }
+
+    private static String readAddress(ByteBuffer buffer) {
+        byte[] publicKeyHash = new byte[PUBLIC_KEY_HASH_LENGTH];
+        buffer.get(publicKeyHash);
+        return AddressCache.address(publicKeyHash);
+    }
+}
@@ -0,0 +1,220 @@
+package com.milkygreen.blockchain.util;
+
+import com.milkygreen.blockchain.core.Block;
+import com.milkygreen.blockchain.core.Hash256;
+
+/**
+ * 区块头hash计算器
+ * 区块头采用固定的二进制格式：preHash(32字节) + merkleTree(32字节) + timestamp(8字节，大端) + nonce(8字节，大端)，共80字节。
+ * 前64字节正好是SHA-256的一个分组，挖矿过程中这部分不会变化，只需要计算一次得到中间状态(midstate)，
+ * 之后每次尝试只需要从中间状态出发处理剩下的16字节，再做第二次SHA-256即可。
+ * 这里直接实现了SHA-256的压缩函数，每次尝试固定执行两次压缩，计算过程中不创建任何对象。实例不是线程安全的，每个线程需要使用自己的实例。
+ */
+public class BlockHasher {
+
+    /**
+     * 区块头长度
+     */
+    public static final int HEADER_LENGTH = 80;
+
+    /**
+     * hash长度
+     */
+    public static final int HASH_LENGTH = 32;
+
+    /**
+     * SHA-256轮常量
+     */
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    /**
+     * SHA-256初始状态
+     */
+    private static final int[] IV = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    /**
+     * 处理完区块头前64字节之后的中间状态
+     */
+    private final int[] midstate = new int[8];
+
+    /**
+     * 压缩函数的工作状态
+     */
+    private final int[] state = new int[8];
+
+    /**
+     * 消息扩展缓冲区
+     */
+    private final int[] w = new int[64];
+
+    /**
+     * 区块时间戳，位于区块头第二个分组的开头
+     */
+    private long timestamp;
+
+    /**
+     * 区块hash，即第二次SHA-256的结果
+     */
+    private final byte[] hash = new byte[HASH_LENGTH];
+
+    /**
+     * 用区块的固定部分初始化中间状态
+     */
+    public void init(Block block) {
+        init(hashToBytes(block.getPreHashValue()), hashToBytes(block.getMerkleTreeValue()), block.getTimestamp());
+    }
+
+    /**
+     * 用区块头的固定部分初始化中间状态
+     *
+     * @param preHash    上个区块的hash，32字节
+     * @param merkleTree 默克尔树根，32字节
+     * @param timestamp  区块时间戳
+     */
+    public void init(byte[] preHash, byte[] merkleTree, long timestamp) {
+        for (int i = 0; i < 8; i++) {
+            w[i] = readInt(preHash, i * 4);
+            w[i + 8] = readInt(merkleTree, i * 4);
+        }
+        System.arraycopy(IV, 0, midstate, 0, 8);
+        compress(midstate);
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * 计算指定nonce下的区块hash
+     *
+     * @return 区块hash，返回的是内部缓冲区，下次调用时会被覆盖
+     */
+    public byte[] hash(long nonce) {
+        // 第一次SHA-256的第二个分组：timestamp + nonce + 填充 + 长度(640 bit)
+        System.arraycopy(midstate, 0, state, 0, 8);
+        w[0] = (int) (timestamp >>> 32);
+        w[1] = (int) timestamp;
+        w[2] = (int) (nonce >>> 32);
+        w[3] = (int) nonce;
+        w[4] = 0x80000000;
+        for (int i = 5; i < 15; i++) {
+            w[i] = 0;
+        }
+        w[15] = HEADER_LENGTH * 8;
+        compress(state);
+        // 第二次SHA-256只有一个分组：32字节摘要 + 填充 + 长度(256 bit)
+        System.arraycopy(state, 0, w, 0, 8);
+        w[8] = 0x80000000;
+        for (int i = 9; i < 15; i++) {
+            w[i] = 0;
+        }
+        w[15] = HASH_LENGTH * 8;
+        System.arraycopy(IV, 0, state, 0, 8);
+        compress(state);
+        for (int i = 0; i < 8; i++) {
+            int v = state[i];
+            hash[i * 4] = (byte) (v >>> 24);
+            hash[i * 4 + 1] = (byte) (v >>> 16);
+            hash[i * 4 + 2] = (byte) (v >>> 8);
+            hash[i * 4 + 3] = (byte) v;
+        }
+        return hash;
+    }
+
+    /**
+     * SHA-256压缩函数，输入分组已经写在w的前16个元素中
+     */
+    private void compress(int[] h) {
+        int[] w = this.w;
+        for (int t = 16; t < 64; t++) {
+            int x = w[t - 15];
+            int y = w[t - 2];
+            int s0 = Integer.rotateRight(x, 7) ^ Integer.rotateRight(x, 18) ^ (x >>> 3);
+            int s1 = Integer.rotateRight(y, 17) ^ Integer.rotateRight(y, 19) ^ (y >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+        int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+        for (int t = 0; t < 64; t++) {
+            int t1 = hh + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+                    + ((e & f) ^ (~e & g)) + K[t] + w[t];
+            int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+                    + ((a & b) ^ (a & c) ^ (b & c));
+            hh = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+        h[5] += f;
+        h[6] += g;
+        h[7] += hh;
+    }
+
+    /**
+     * 序列化区块头
+     */
+    public static byte[] serializeHeader(Block block) {
+        byte[] header = new byte[HEADER_LENGTH];
+        if (block.getPreHashValue() != null) {
+            block.getPreHashValue().writeTo(header, 0);
+        }
+        if (block.getMerkleTreeValue() != null) {
+            block.getMerkleTreeValue().writeTo(header, HASH_LENGTH);
+        }
+        writeLong(header, 64, block.getTimestamp());
+        writeLong(header, 72, block.getNonce());
+        return header;
+    }
+
+    /**
+     * 按无符号大端整数比较hash与目标值，hash严格小于目标值时返回true
+     */
+    public static boolean lessThan(byte[] hash, byte[] target) {
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            int a = hash[i] & 0xff;
+            int b = target[i] & 0xff;
+            if (a != b) {
+                return a < b;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * hash转为32字节，创世区块没有preHash，用全0代替
+     */
+    private static byte[] hashToBytes(Hash256 hash) {
+        if (hash == null) {
+            return new byte[HASH_LENGTH];
+        }
+        return hash.toBytes();
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -7,7 +7,7 @@ import org.bouncycastle.util.encoders.Hex;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  *
@@ -108,11 +108,18 @@ public class ByteUtil {
 
     /**
      * 碾平字节数组列表为字节数组。
+     * 先算出总长度，只分配一次数组，每个元素只复制一次。
      */
     public static byte[] flat(List<byte[]> values) {
-        byte[] concatBytes = new byte[0];
+        int length = 0;
         for(byte[] value:values){
-            concatBytes = concatenate(concatBytes,value);
+            length += value.length;
+        }
+        byte[] concatBytes = new byte[length];
+        int position = 0;
+        for(byte[] value:values){
+            System.arraycopy(value,0,concatBytes,position,value.length);
+            position += value.length;
         }
         return concatBytes;
     }
@@ -141,8 +148,7 @@ public class ByteUtil {
 
     public static byte[] random32Bytes(){
         byte[] randomBytes = new byte[32];
-        Random RANDOM = new Random();
-        RANDOM.nextBytes(randomBytes);
+        ThreadLocalRandom.current().nextBytes(randomBytes);
         return randomBytes;
     }
 }
\ No newline at end of file
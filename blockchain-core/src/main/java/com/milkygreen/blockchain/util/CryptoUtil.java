@@ -1,28 +1,34 @@
 package com.milkygreen.blockchain.util;
 
 import com.milkygreen.blockchain.wallet.Account;
-import org.bouncycastle.asn1.ASN1InputStream;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.bouncycastle.asn1.ASN1Integer;
 import org.bouncycastle.asn1.DERSequenceGenerator;
-import org.bouncycastle.asn1.DLSequence;
-import org.bouncycastle.asn1.sec.SECNamedCurves;
 import org.bouncycastle.asn1.x9.X9ECParameters;
-import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
 import org.bouncycastle.crypto.digests.SHA256Digest;
-import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
 import org.bouncycastle.crypto.params.ECDomainParameters;
-import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
 import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
 import org.bouncycastle.crypto.params.ECPublicKeyParameters;
 import org.bouncycastle.crypto.signers.ECDSASigner;
 import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.math.ec.ECAlgorithms;
+import org.bouncycastle.math.ec.ECMultiplier;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
+import org.bouncycastle.math.ec.FixedPointUtil;
+import org.bouncycastle.math.ec.WNafUtil;
+import org.bouncycastle.util.BigIntegers;
 
 import java.io.ByteArrayOutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 /**
  * 加密相关方法工具类
@@ -40,13 +46,12 @@ public class CryptoUtil {
      * Sha256 hash算法
      */
     public static byte[] digest(byte[] input) {
-        try {
-            MessageDigest sha256MessageDigest = MessageDigest.getInstance("SHA-256",BouncyCastleProvider.PROVIDER_NAME);
-            byte[] sha256Digest = sha256MessageDigest.digest(input);
-            return sha256Digest;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        // 直接使用BouncyCastle的摘要实现，MessageDigest.getInstance每次都要查找Provider，比计算hash本身还慢
+        SHA256Digest sha256Digest = new SHA256Digest();
+        sha256Digest.update(input, 0, input.length);
+        byte[] hash = new byte[sha256Digest.getDigestSize()];
+        sha256Digest.doFinal(hash, 0);
+        return hash;
     }
 
     /**
@@ -63,15 +68,37 @@ public class CryptoUtil {
     private static final boolean COMPRESSED = true;
     private static final BigInteger HALF_CURVE_ORDER;
 
+    /**
+     * 解码后的公钥缓存，key是原始公钥
+     */
+    private static final Cache<ByteBuffer, ECPublicKeyParameters> PUBLIC_KEY_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(10_000)
+            .build();
+
 
     private static final byte VERSION = 0x00;
 
 
+    /**
+     * 生成元G的标量乘法器，使用G的梳状预计算表
+     */
+    private static final ECMultiplier BASE_POINT_MULTIPLIER = new FixedPointCombMultiplier();
+
+    /**
+     * BIP340各个用途的hash标签，已经做过一次SHA256
+     */
+    private static final byte[] SCHNORR_AUX_TAG = digest(ByteUtil.stringToUtf8Bytes("BIP0340/aux"));
+    private static final byte[] SCHNORR_NONCE_TAG = digest(ByteUtil.stringToUtf8Bytes("BIP0340/nonce"));
+    private static final byte[] SCHNORR_CHALLENGE_TAG = digest(ByteUtil.stringToUtf8Bytes("BIP0340/challenge"));
+
     static {
-        X9ECParameters params = SECNamedCurves.getByName("secp256k1");
+        // 使用专门为secp256k1优化过的实现：模p运算按固定的256位整数展开，标量乘法使用GLV自同态加速
+        X9ECParameters params = CustomNamedCurves.getByName("secp256k1");
         CURVE = new ECDomainParameters(params.getCurve(), params.getG(), params.getN(), params.getH());
         SECURE_RANDOM = new SecureRandom();
         HALF_CURVE_ORDER = CURVE.getN().shiftRight(1);
+        // 生成公钥、签名都是计算k*G，G是固定的，提前算好G的梳状表并挂在G上，之后所有线程共用，不需要再做倍点运算
+        FixedPointUtil.precompute(CURVE.getG());
     }
 
     /**
@@ -79,14 +106,8 @@ public class CryptoUtil {
      */
     public static Account randomAccount() {
         try {
-            ECKeyPairGenerator generator = new ECKeyPairGenerator();
-            ECKeyGenerationParameters keygenParams = new ECKeyGenerationParameters(CURVE, SECURE_RANDOM);
-            generator.init(keygenParams);
-            AsymmetricCipherKeyPair keypair = generator.generateKeyPair();
-            ECPrivateKeyParameters ecPrivateKeyParameters = (ECPrivateKeyParameters) keypair.getPrivate();
-            ECPublicKeyParameters pubParams = (ECPublicKeyParameters) keypair.getPublic();
-            BigInteger bigIntegerPrivateKey = ecPrivateKeyParameters.getD();
-            byte[] bytesPublicKey = pubParams.getQ().getEncoded(COMPRESSED);
+            BigInteger bigIntegerPrivateKey = randomPrivateKey0();
+            byte[] bytesPublicKey = publicKeyFromPrivateKey0(bigIntegerPrivateKey);
             String privateKey = encodePrivateKey0(bigIntegerPrivateKey);
             String publicKey = encodePublicKey0(bytesPublicKey);
             String address = addressFromPublicKey(publicKey);
@@ -152,6 +173,37 @@ public class CryptoUtil {
             throw new RuntimeException(e);
         }
     }
+    /**
+     * 地址解码出20字节的原始公钥哈希，同时校验版本号和校验码
+     *
+     * @return 不是合法的地址时返回null
+     */
+    public static byte[] publicKeyHashBytesFromAddress(String address) {
+        byte[] bytesAddress;
+        try {
+            bytesAddress = Base58Util.decode(address);
+        } catch (Exception e) {
+            return null;
+        }
+        if (bytesAddress.length != 25 || bytesAddress[0] != VERSION) {
+            return null;
+        }
+        byte[] bytesCheckCode = doubleDigest(ByteUtil.copy(bytesAddress, 0, 21));
+        for (int i = 0; i < 4; i++) {
+            if (bytesCheckCode[i] != bytesAddress[21 + i]) {
+                return null;
+            }
+        }
+        return ByteUtil.copy(bytesAddress, 1, 20);
+    }
+
+    /**
+     * 20字节的原始公钥哈希生成地址
+     */
+    public static String addressFromPublicKeyHash(byte[] bytesPublicKeyHash) {
+        return base58AddressFromPublicKeyHash0(bytesPublicKeyHash);
+    }
+
     /**
      * 公钥哈希生成地址
      */
@@ -189,6 +241,50 @@ public class CryptoUtil {
         }
     }
 
+    /**
+     * Schnorr签名（BIP340）
+     *
+     * @return 64字节签名的十六进制形式
+     */
+    public static String schnorrSignature(String privateKey, byte[] bytesMessage) {
+        try {
+            BigInteger bigIntegerPrivateKey = decodePrivateKey0(privateKey);
+            byte[] bytesSignature = schnorrSignature0(bigIntegerPrivateKey, bytesMessage);
+            return ByteUtil.bytesToHexString(bytesSignature);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 验证Schnorr签名
+     * 公钥仍然是33字节的压缩公钥，BIP340只使用其中的x坐标
+     */
+    public static boolean verifySchnorrSignature(String publicKey, byte[] bytesMessage, byte[] bytesSignature) {
+        try {
+            byte[] bytesPublicKey = decodePublicKey0(publicKey);
+            return verifySchnorrSignature0(bytesPublicKey, bytesMessage, bytesSignature);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * 批量验证Schnorr签名，三个列表一一对应
+     * 只要有一个签名不正确就返回false，但是不能知道是哪一个，需要的话可以再逐个验证。
+     */
+    public static boolean verifySchnorrSignatures(List<String> publicKeys, List<byte[]> bytesMessages, List<byte[]> bytesSignatures) {
+        try {
+            List<byte[]> bytesPublicKeys = new ArrayList<>(publicKeys.size());
+            for (String publicKey : publicKeys) {
+                bytesPublicKeys.add(decodePublicKey0(publicKey));
+            }
+            return verifySchnorrSignatures0(bytesPublicKeys, bytesMessages, bytesSignatures);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     /**
      * 格式化私钥
      * 前置填零，返回[长度为64位][十六进制字符串][形式的]私钥
@@ -230,11 +326,30 @@ public class CryptoUtil {
         byte[] bytesPublicKeyHash = Ripemd160Util.digest(digest(publicKey));
         return bytesPublicKeyHash;
     }
+    /**
+     * 随机生成原始私钥，范围是[1, n-1]
+     * 与ECKeyPairGenerator的规则相同：非相邻形式(NAF)中非零位太少的私钥容易被针对性地猜到，需要重新生成
+     */
+    private static BigInteger randomPrivateKey0() {
+        BigInteger n = CURVE.getN();
+        int minWeight = n.bitLength() >>> 2;
+        while (true) {
+            BigInteger d = BigIntegers.createRandomBigInteger(n.bitLength(), SECURE_RANDOM);
+            if (d.compareTo(BigInteger.ONE) < 0 || d.compareTo(n) >= 0) {
+                continue;
+            }
+            if (WNafUtil.getNafWeight(d) < minWeight) {
+                continue;
+            }
+            return d;
+        }
+    }
+
     /**
      * 由原始私钥推导出原始公钥
      */
     private static byte[] publicKeyFromPrivateKey0(BigInteger bigIntegerPrivateKey) {
-        byte[] bytePublicKey = CURVE.getG().multiply(bigIntegerPrivateKey).getEncoded(COMPRESSED);
+        byte[] bytePublicKey = BASE_POINT_MULTIPLIER.multiply(CURVE.getG(), bigIntegerPrivateKey).getEncoded(COMPRESSED);
         return bytePublicKey;
     }
     /**
@@ -296,23 +411,231 @@ public class CryptoUtil {
      */
     private static boolean verifySignature0(byte[] publicKey, byte[] message, byte[] signature) {
         try {
-            ECDSASigner signer = new ECDSASigner();
-            ECPublicKeyParameters ecPublicKeyParameters = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(publicKey), CURVE);
-            signer.init(false, ecPublicKeyParameters);
-            ASN1InputStream decoder = new ASN1InputStream(signature);
-            DLSequence seq = (DLSequence) decoder.readObject();
-            ASN1Integer r = (ASN1Integer) seq.getObjectAt(0);
-            ASN1Integer s = (ASN1Integer) seq.getObjectAt(1);
-            if (!isCanonical(s.getValue())) {
+            BigInteger[] rs = decodeSignature0(signature);
+            if (rs == null || !isCanonical(rs[1])) {
                 return false;
             }
-            decoder.close();
-            return signer.verifySignature(message, r.getValue(), s.getValue());
+            ECDSASigner signer = new ECDSASigner();
+            signer.init(false, decodePublicKeyPoint0(publicKey));
+            return signer.verifySignature(message, rs[0], rs[1]);
         } catch (Exception e) {
             return false;
         }
     }
 
+    /**
+     * Schnorr签名（BIP340）
+     * 公钥只取x坐标，对应y为偶数的那个点；私钥对应的公钥y为奇数时，用n-d代替d签名。
+     * 签名是R的x坐标和s拼接起来的64字节，满足 s*G = R + e*P，其中e = hash(R.x || P.x || 消息)。
+     */
+    private static byte[] schnorrSignature0(BigInteger privateKey, byte[] message) {
+        BigInteger n = CURVE.getN();
+        ECPoint p = BASE_POINT_MULTIPLIER.multiply(CURVE.getG(), privateKey).normalize();
+        BigInteger d = p.getAffineYCoord().testBitZero() ? n.subtract(privateKey) : privateKey;
+        byte[] px = p.getAffineXCoord().getEncoded();
+        // nonce由私钥、公钥、消息和一段随机数确定，随机数只是额外的保护，即使随机数生成器有问题nonce也不会重复
+        byte[] aux = new byte[32];
+        SECURE_RANDOM.nextBytes(aux);
+        byte[] t = BigIntegers.asUnsignedByteArray(32, d);
+        byte[] auxHash = taggedHash0(SCHNORR_AUX_TAG, aux);
+        for (int i = 0; i < t.length; i++) {
+            t[i] ^= auxHash[i];
+        }
+        BigInteger k = new BigInteger(1, taggedHash0(SCHNORR_NONCE_TAG, t, px, message)).mod(n);
+        if (k.signum() == 0) {
+            throw new IllegalStateException("Schnorr签名的nonce为0");
+        }
+        ECPoint r = BASE_POINT_MULTIPLIER.multiply(CURVE.getG(), k).normalize();
+        if (r.getAffineYCoord().testBitZero()) {
+            k = n.subtract(k);
+        }
+        byte[] rx = r.getAffineXCoord().getEncoded();
+        BigInteger e = schnorrChallenge0(rx, px, message);
+        byte[] s = BigIntegers.asUnsignedByteArray(32, k.add(e.multiply(d)).mod(n));
+        return ByteUtil.concatenate(rx, s);
+    }
+
+    /**
+     * 验证Schnorr签名：计算 R = s*G - e*P，R不能是无穷远点，y必须为偶数，x必须等于签名中的r
+     */
+    private static boolean verifySchnorrSignature0(byte[] publicKey, byte[] message, byte[] signature) throws ExecutionException {
+        if (publicKey.length != 33 || signature.length != 64) {
+            return false;
+        }
+        BigInteger n = CURVE.getN();
+        byte[] px = ByteUtil.copy(publicKey, 1, 32);
+        byte[] rx = ByteUtil.copy(signature, 0, 32);
+        BigInteger r = new BigInteger(1, rx);
+        BigInteger s = new BigInteger(1, ByteUtil.copy(signature, 32, 32));
+        if (r.compareTo(CURVE.getCurve().getField().getCharacteristic()) >= 0 || s.compareTo(n) >= 0) {
+            return false;
+        }
+        ECPoint p = liftX0(px);
+        BigInteger e = schnorrChallenge0(rx, px, message);
+        ECPoint point = ECAlgorithms.sumOfTwoMultiplies(CURVE.getG(), s, p, n.subtract(e)).normalize();
+        return !point.isInfinity()
+                && !point.getAffineYCoord().testBitZero()
+                && point.getAffineXCoord().toBigInteger().equals(r);
+    }
+
+    /**
+     * 批量验证Schnorr签名
+     * 每个签名满足 s_i*G = R_i + e_i*P_i。给每个等式乘上一个随机系数a_i再相加，得到
+     * (Σa_i*s_i)*G - Σa_i*R_i - Σ(a_i*e_i)*P_i = 无穷远点，
+     * 左边只需要一次多标量乘法，比逐个验证的2u次标量乘法快得多。
+     * 随机系数是验证方临时生成的，签名方无法预知，所以不能构造出几个错误签名互相抵消的情况。
+     */
+    private static boolean verifySchnorrSignatures0(List<byte[]> publicKeys, List<byte[]> messages, List<byte[]> signatures) throws ExecutionException {
+        int size = signatures.size();
+        if (publicKeys.size() != size || messages.size() != size) {
+            throw new IllegalArgumentException("公钥、消息、签名的数量不一致");
+        }
+        if (size == 0) {
+            return true;
+        }
+        if (size == 1) {
+            return verifySchnorrSignature0(publicKeys.get(0), messages.get(0), signatures.get(0));
+        }
+        BigInteger n = CURVE.getN();
+        BigInteger fieldSize = CURVE.getCurve().getField().getCharacteristic();
+        ECPoint[] points = new ECPoint[2 * size + 1];
+        BigInteger[] scalars = new BigInteger[2 * size + 1];
+        BigInteger sum = BigInteger.ZERO;
+        for (int i = 0; i < size; i++) {
+            byte[] publicKey = publicKeys.get(i);
+            byte[] signature = signatures.get(i);
+            if (publicKey.length != 33 || signature.length != 64) {
+                return false;
+            }
+            byte[] px = ByteUtil.copy(publicKey, 1, 32);
+            byte[] rx = ByteUtil.copy(signature, 0, 32);
+            BigInteger r = new BigInteger(1, rx);
+            BigInteger s = new BigInteger(1, ByteUtil.copy(signature, 32, 32));
+            if (r.compareTo(fieldSize) >= 0 || s.compareTo(n) >= 0) {
+                return false;
+            }
+            // 第一个系数固定为1，其余是128位随机数
+            BigInteger a = i == 0 ? BigInteger.ONE : randomBatchCoefficient0();
+            BigInteger e = schnorrChallenge0(rx, px, messages.get(i));
+            sum = sum.add(a.multiply(s));
+            points[2 * i + 1] = liftXUncached0(rx);
+            scalars[2 * i + 1] = n.subtract(a);
+            points[2 * i + 2] = liftX0(px);
+            scalars[2 * i + 2] = n.subtract(a.multiply(e).mod(n));
+        }
+        points[0] = CURVE.getG();
+        scalars[0] = sum.mod(n);
+        return ECAlgorithms.sumOfMultiplies(points, scalars).isInfinity();
+    }
+
+    /**
+     * x坐标对应的y为偶数的公钥点，会被缓存
+     */
+    private static ECPoint liftX0(byte[] x) throws ExecutionException {
+        return decodePublicKeyPoint0(ByteUtil.concatenate(new byte[]{0x02}, x)).getQ();
+    }
+
+    /**
+     * x坐标对应的y为偶数的点，用于只出现一次的签名R，不放进缓存
+     */
+    private static ECPoint liftXUncached0(byte[] x) {
+        return CURVE.getCurve().decodePoint(ByteUtil.concatenate(new byte[]{0x02}, x));
+    }
+
+    /**
+     * 批量验证的随机系数，范围是[1, 2^128)
+     */
+    private static BigInteger randomBatchCoefficient0() {
+        BigInteger a;
+        do {
+            a = new BigInteger(128, SECURE_RANDOM);
+        } while (a.signum() == 0);
+        return a;
+    }
+
+    /**
+     * e = hash(R.x || P.x || 消息) mod n
+     */
+    private static BigInteger schnorrChallenge0(byte[] rx, byte[] px, byte[] message) {
+        return new BigInteger(1, taggedHash0(SCHNORR_CHALLENGE_TAG, rx, px, message)).mod(CURVE.getN());
+    }
+
+    /**
+     * BIP340的带标签hash：SHA256(SHA256(tag) || SHA256(tag) || 数据)，不同用途的hash互不干扰
+     */
+    private static byte[] taggedHash0(byte[] tagHash, byte[]... datas) {
+        SHA256Digest digest = new SHA256Digest();
+        digest.update(tagHash, 0, tagHash.length);
+        digest.update(tagHash, 0, tagHash.length);
+        for (byte[] data : datas) {
+            digest.update(data, 0, data.length);
+        }
+        byte[] hash = new byte[digest.getDigestSize()];
+        digest.doFinal(hash, 0);
+        return hash;
+    }
+
+    /**
+     * 由原始公钥得到曲线上的点
+     * 压缩公钥解压时要在有限域上开平方，代价接近一次签名验证的几分之一，同一个公钥往往会被反复使用（找零账户、频繁收付款的账户），
+     * 所以解压并规范化之后的点缓存起来，下次直接使用。
+     */
+    private static ECPublicKeyParameters decodePublicKeyPoint0(byte[] publicKey) throws ExecutionException {
+        return PUBLIC_KEY_CACHE.get(ByteBuffer.wrap(publicKey.clone()),
+                () -> new ECPublicKeyParameters(CURVE.getCurve().decodePoint(publicKey).normalize(), CURVE));
+    }
+
+    /**
+     * 解析DER编码的签名：0x30 长度 0x02 r的长度 r 0x02 s的长度 s
+     * 签名只有两个不超过33字节的整数，长度都是单字节形式，这里直接按字节解析，不用经过ASN1InputStream构建对象。
+     * 只接受严格的DER编码（同BIP66）：整数不能有多余的前导0，不能是负数，r和s都必须在[1, n-1]之间，后面不能有多余的字节。
+     * 这样一个合法签名只有一种编码，别人无法在不改变签名含义的情况下改写签名的字节，签名缓存的key也是唯一的。
+     *
+     * @return [r, s]，格式不正确时返回null
+     */
+    private static BigInteger[] decodeSignature0(byte[] signature) {
+        if (signature.length < 8 || signature.length > 72 || signature[0] != 0x30
+                || (signature[1] & 0xff) != signature.length - 2) {
+            return null;
+        }
+        BigInteger r = decodeDerInteger0(signature, 2);
+        if (r == null) {
+            return null;
+        }
+        int sOffset = 4 + (signature[3] & 0xff);
+        BigInteger s = decodeDerInteger0(signature, sOffset);
+        if (s == null || sOffset + 2 + (signature[sOffset + 1] & 0xff) != signature.length) {
+            return null;
+        }
+        return new BigInteger[]{r, s};
+    }
+
+    /**
+     * 解析offset处的DER正整数
+     *
+     * @return 越界、不是最短编码、为负数，或者不在[1, n-1]之间时返回null
+     */
+    private static BigInteger decodeDerInteger0(byte[] bytes, int offset) {
+        if (offset + 2 > bytes.length || bytes[offset] != 0x02) {
+            return null;
+        }
+        int length = bytes[offset + 1] & 0xff;
+        int start = offset + 2;
+        if (length == 0 || length > 33 || start + length > bytes.length) {
+            return null;
+        }
+        if ((bytes[start] & 0x80) != 0) {
+            // 负数
+            return null;
+        }
+        if (bytes[start] == 0 && (length == 1 || (bytes[start + 1] & 0x80) == 0)) {
+            // 前导0只能用来避免下一个字节的最高位被当成符号位
+            return null;
+        }
+        BigInteger value = new BigInteger(1, ByteUtil.copy(bytes, start, length));
+        return value.signum() > 0 && value.compareTo(CURVE.getN()) < 0 ? value : null;
+    }
+
     /**
      * 公钥生成base58格式地址
      */
@@ -350,19 +673,10 @@ public class CryptoUtil {
         return s.compareTo(HALF_CURVE_ORDER) <= 0;
     }
 
+    /**
+     * 计算默克尔树根
+     */
     public static byte[] calculateMerkleTreeRoot(List<byte[]> datas) {
-        List<byte[]> tree = new ArrayList<>(datas);
-        int size = tree.size();
-        int levelOffset = 0;
-        for (int levelSize = size; levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            for (int left = 0; left < levelSize; left += 2) {
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = tree.get(levelOffset + left);
-                byte[] rightBytes = tree.get(levelOffset + right);
-                tree.add(doubleDigest(ByteUtil.concatenate(leftBytes, rightBytes)));
-            }
-            levelOffset += levelSize;
-        }
-        return tree.get(tree.size()-1);
+        return MerkleTree.build(datas).root();
     }
 }
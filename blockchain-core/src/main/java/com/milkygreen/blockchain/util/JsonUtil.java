@@ -1,12 +1,21 @@
 package com.milkygreen.blockchain.util;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.milkygreen.blockchain.core.Hash256;
+
+import java.io.IOException;
 
 /**
  */
 public class JsonUtil {
 
-    public static Gson gson = new Gson();
+    public static Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Hash256.class, new Hash256Adapter().nullSafe())
+            .create();
 
     public static String toJson(Object object){
         return gson.toJson(object);
@@ -16,4 +25,20 @@ public class JsonUtil {
         return gson.fromJson(json,classTo);
     }
 
+    /**
+     * hash在JSON中仍然是十六进制字符串
+     */
+    private static class Hash256Adapter extends TypeAdapter<Hash256> {
+
+        @Override
+        public void write(JsonWriter out, Hash256 value) throws IOException {
+            out.value(value.toHex());
+        }
+
+        @Override
+        public Hash256 read(JsonReader in) throws IOException {
+            return Hash256.fromHex(in.nextString());
+        }
+    }
+
 }
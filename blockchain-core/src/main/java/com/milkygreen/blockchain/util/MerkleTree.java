@@ -0,0 +1,338 @@
+package com.milkygreen.blockchain.util;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 默克尔树
+ * 叶子节点是交易hash，每两个相邻节点拼接之后做两次SHA-256得到父节点，某一层节点数量为奇数时，最后一个节点与自己拼接。
+ * 一直计算到只剩一个节点，就是默克尔树根。
+ * 所有层的节点都保存在同一个字节数组中，按层依次排列，每层预留2的整数次幂个位置，
+ * 因此替换或追加一个叶子之后，只需要重新计算它到根的路径，时间复杂度O(log n)。
+ * 同时可以为任意一个叶子生成包含证明：从叶子到根路径上每一层的兄弟节点，拿到证明的人不需要全部交易就能验证交易在区块中。
+ * 整棵树一次性构建时，节点数量超过{@link #PARALLEL_THRESHOLD}的层会切分成若干段，在ForkJoinPool上并行计算。
+ * 实例不是线程安全的。
+ */
+public class MerkleTree {
+
+    /**
+     * 节点长度
+     */
+    public static final int NODE_LENGTH = 32;
+
+    /**
+     * 一层的父节点数量达到这个值时并行计算
+     */
+    public static final int PARALLEL_THRESHOLD = 2048;
+
+    /**
+     * 并行计算时，每个任务负责的父节点数量
+     */
+    private static final int PARALLEL_CHUNK = 512;
+
+    /**
+     * 所有层的节点，第0层是叶子
+     */
+    private byte[] nodes;
+
+    /**
+     * 每层可以容纳的叶子数量，总是2的整数次幂
+     */
+    private int capacity;
+
+    /**
+     * 叶子数量
+     */
+    private int size;
+
+    /**
+     * 计算节点时复用的摘要对象和缓冲区
+     */
+    private final SHA256Digest digest = new SHA256Digest();
+
+    private final byte[] firstHash = new byte[NODE_LENGTH];
+
+    public MerkleTree() {
+        this(1);
+    }
+
+    /**
+     * @param expectedSize 预计的叶子数量
+     */
+    public MerkleTree(int expectedSize) {
+        this.capacity = capacityFor(expectedSize);
+        this.nodes = new byte[(2 * capacity - 1) * NODE_LENGTH];
+    }
+
+    /**
+     * 用叶子列表构建默克尔树
+     *
+     * @param leaves 每个叶子32字节
+     */
+    public static MerkleTree build(List<byte[]> leaves) {
+        MerkleTree tree = new MerkleTree(leaves.size());
+        for (int i = 0; i < leaves.size(); i++) {
+            System.arraycopy(leaves.get(i), 0, tree.nodes, i * NODE_LENGTH, NODE_LENGTH);
+        }
+        tree.size = leaves.size();
+        tree.rebuild();
+        return tree;
+    }
+
+    /**
+     * 重新计算所有非叶子节点
+     * 每一层依赖下一层的结果，所以层与层之间是串行的，同一层内的节点互不依赖，可以并行
+     */
+    private void rebuild() {
+        int levelSize = size;
+        for (int level = 0; levelSize > 1; level++) {
+            int parentSize = (levelSize + 1) / 2;
+            if (parentSize >= PARALLEL_THRESHOLD) {
+                ForkJoinPool.commonPool().invoke(new LevelTask(level, levelSize, 0, parentSize));
+            } else {
+                for (int parent = 0; parent < parentSize; parent++) {
+                    hashParent(level, levelSize, parent);
+                }
+            }
+            levelSize = parentSize;
+        }
+    }
+
+    /**
+     * 并行计算一层中[from, to)范围内的父节点
+     * 每个任务使用自己的摘要对象，结果直接写入节点数组中互不重叠的位置
+     */
+    private class LevelTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int level;
+
+        private final int levelSize;
+
+        private final int from;
+
+        private final int to;
+
+        LevelTask(int level, int levelSize, int from, int to) {
+            this.level = level;
+            this.levelSize = levelSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_CHUNK) {
+                SHA256Digest taskDigest = new SHA256Digest();
+                byte[] taskHash = new byte[NODE_LENGTH];
+                for (int parent = from; parent < to; parent++) {
+                    hashParent(level, levelSize, parent, taskDigest, taskHash);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new LevelTask(level, levelSize, from, middle), new LevelTask(level, levelSize, middle, to));
+        }
+    }
+
+    /**
+     * 追加一个叶子
+     */
+    public void append(byte[] leaf) {
+        if (size == capacity) {
+            grow();
+        }
+        System.arraycopy(leaf, 0, nodes, size * NODE_LENGTH, NODE_LENGTH);
+        size++;
+        updatePath(size - 1);
+    }
+
+    /**
+     * 替换一个叶子
+     */
+    public void set(int index, byte[] leaf) {
+        checkIndex(index);
+        System.arraycopy(leaf, 0, nodes, index * NODE_LENGTH, NODE_LENGTH);
+        updatePath(index);
+    }
+
+    /**
+     * 获取一个叶子
+     */
+    public byte[] get(int index) {
+        checkIndex(index);
+        return Arrays.copyOfRange(nodes, index * NODE_LENGTH, (index + 1) * NODE_LENGTH);
+    }
+
+    /**
+     * 查找叶子的位置
+     *
+     * @return 不存在时返回-1
+     */
+    public int indexOf(byte[] leaf) {
+        for (int i = 0; i < size; i++) {
+            if (equalsAt(nodes, i * NODE_LENGTH, leaf)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 默克尔树根，只有一个叶子时就是叶子本身
+     */
+    public byte[] root() {
+        if (size == 0) {
+            throw new IllegalStateException("默克尔树没有叶子");
+        }
+        int level = 0;
+        for (int levelSize = size; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            level++;
+        }
+        int offset = levelOffset(level) * NODE_LENGTH;
+        return Arrays.copyOfRange(nodes, offset, offset + NODE_LENGTH);
+    }
+
+    /**
+     * 生成叶子的包含证明
+     *
+     * @param index 叶子的位置
+     * @return 从叶子到根，每一层的兄弟节点
+     */
+    public List<byte[]> proof(int index) {
+        checkIndex(index);
+        List<byte[]> proof = new ArrayList<>();
+        int levelSize = size;
+        for (int level = 0; levelSize > 1; level++) {
+            // 奇数个节点时最后一个节点的兄弟就是它自己
+            int sibling = Math.min(index ^ 1, levelSize - 1);
+            int offset = (levelOffset(level) + sibling) * NODE_LENGTH;
+            proof.add(Arrays.copyOfRange(nodes, offset, offset + NODE_LENGTH));
+            index >>= 1;
+            levelSize = (levelSize + 1) / 2;
+        }
+        return proof;
+    }
+
+    /**
+     * 验证包含证明
+     *
+     * @param leaf  叶子
+     * @param index 叶子的位置
+     * @param proof {@link #proof(int)}生成的证明
+     * @param root  默克尔树根
+     * @return 叶子是否确实在这棵树中
+     */
+    public static boolean verifyProof(byte[] leaf, int index, List<byte[]> proof, byte[] root) {
+        byte[] current = leaf;
+        for (byte[] sibling : proof) {
+            if ((index & 1) == 0) {
+                current = CryptoUtil.doubleDigest(ByteUtil.concatenate(current, sibling));
+            } else {
+                current = CryptoUtil.doubleDigest(ByteUtil.concatenate(sibling, current));
+            }
+            index >>= 1;
+        }
+        return index == 0 && Arrays.equals(current, root);
+    }
+
+    /**
+     * 复制一棵树，之后两棵树互不影响
+     */
+    public MerkleTree copy() {
+        MerkleTree copy = new MerkleTree(capacity);
+        System.arraycopy(nodes, 0, copy.nodes, 0, nodes.length);
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * 叶子变化之后，重新计算它到根路径上的节点
+     */
+    private void updatePath(int index) {
+        int levelSize = size;
+        for (int level = 0; levelSize > 1; level++) {
+            int parent = index >> 1;
+            hashParent(level, levelSize, parent);
+            index = parent;
+            levelSize = (levelSize + 1) / 2;
+        }
+    }
+
+    /**
+     * 计算第level层第parent个父节点，结果直接写入上一层
+     */
+    private void hashParent(int level, int levelSize, int parent) {
+        hashParent(level, levelSize, parent, digest, firstHash);
+    }
+
+    private void hashParent(int level, int levelSize, int parent, SHA256Digest digest, byte[] firstHash) {
+        int base = levelOffset(level);
+        int left = parent * 2;
+        int right = Math.min(left + 1, levelSize - 1);
+        digest.update(nodes, (base + left) * NODE_LENGTH, NODE_LENGTH);
+        digest.update(nodes, (base + right) * NODE_LENGTH, NODE_LENGTH);
+        digest.doFinal(firstHash, 0);
+        digest.update(firstHash, 0, NODE_LENGTH);
+        digest.doFinal(nodes, (levelOffset(level + 1) + parent) * NODE_LENGTH);
+    }
+
+    /**
+     * 容量翻倍，已经计算好的节点按层复制到新的位置，不需要重新计算
+     */
+    private void grow() {
+        int newCapacity = capacity * 2;
+        byte[] newNodes = new byte[(2 * newCapacity - 1) * NODE_LENGTH];
+        for (int level = 0, levelCapacity = capacity; levelCapacity > 0; level++, levelCapacity >>= 1) {
+            System.arraycopy(nodes, levelOffset(level, capacity) * NODE_LENGTH,
+                    newNodes, levelOffset(level, newCapacity) * NODE_LENGTH, levelCapacity * NODE_LENGTH);
+        }
+        nodes = newNodes;
+        capacity = newCapacity;
+    }
+
+    /**
+     * 某一层第一个节点的位置
+     */
+    private int levelOffset(int level) {
+        return levelOffset(level, capacity);
+    }
+
+    private static int levelOffset(int level, int capacity) {
+        // capacity + capacity/2 + ... 共level项
+        return 2 * capacity - 2 * (capacity >> level);
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index=" + index + ", size=" + size);
+        }
+    }
+
+    private static boolean equalsAt(byte[] bytes, int offset, byte[] other) {
+        for (int i = 0; i < NODE_LENGTH; i++) {
+            if (bytes[offset + i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,99 @@
+package com.milkygreen.blockchain.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 签名验证缓存
+ * 同一个签名往往会被验证多次：交易进入交易池时验证一次，被打包进区块、区块入库时又要验证一次。
+ * 这里记录已经验证通过的(签名消息, 公钥, 签名)组合，再次遇到时直接认为通过，省掉重复的ECDSA运算。
+ * 只缓存验证通过的结果，验证失败的签名每次都重新计算，避免被人用大量非法签名挤掉有效的缓存。
+ * 缓存有容量上限，超出之后淘汰最久没有使用的条目。所有方法都是线程安全的。
+ */
+public class SignatureCache {
+
+    /**
+     * 缓存条目数量上限
+     */
+    public static final long MAXIMUM_SIZE = 100_000;
+
+    /**
+     * key是三个字段拼接之后的SHA-256，固定32字节，不用保存原始的公钥和签名
+     */
+    private static final Cache<ByteBuffer, Boolean> CACHE = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+            .recordStats()
+            .build();
+
+    /**
+     * 签名是否已经验证通过
+     *
+     * @param message   签名的消息
+     * @param publicKey 公钥
+     * @param signature 签名
+     */
+    public static boolean contains(byte[] message, byte[] publicKey, byte[] signature) {
+        return CACHE.getIfPresent(key(message, publicKey, signature)) != null;
+    }
+
+    /**
+     * 记录一个验证通过的签名
+     */
+    public static void add(byte[] message, byte[] publicKey, byte[] signature) {
+        CACHE.put(key(message, publicKey, signature), Boolean.TRUE);
+    }
+
+    /**
+     * 当前缓存的签名数量
+     */
+    public static long size() {
+        return CACHE.size();
+    }
+
+    /**
+     * 命中次数
+     */
+    public static long getHitCount() {
+        return CACHE.stats().hitCount();
+    }
+
+    /**
+     * 未命中次数
+     */
+    public static long getMissCount() {
+        return CACHE.stats().missCount();
+    }
+
+    /**
+     * 清空缓存
+     */
+    public static void clear() {
+        CACHE.invalidateAll();
+    }
+
+    /**
+     * 每个字段前面加上4字节长度再拼接，防止不同的字段划分得到相同的key
+     */
+    private static ByteBuffer key(byte[] message, byte[] publicKey, byte[] signature) {
+        SHA256Digest digest = new SHA256Digest();
+        update(digest, message);
+        update(digest, publicKey);
+        update(digest, signature);
+        byte[] key = new byte[digest.getDigestSize()];
+        digest.doFinal(key, 0);
+        return ByteBuffer.wrap(key);
+    }
+
+    private static void update(SHA256Digest digest, byte[] value) {
+        int length = value.length;
+        digest.update((byte) (length >>> 24));
+        digest.update((byte) (length >>> 16));
+        digest.update((byte) (length >>> 8));
+        digest.update((byte) length);
+        digest.update(value, 0, value.length);
+    }
+}
@@ -0,0 +1,111 @@
+package com.milkygreen.blockchain.util;
+
+import com.milkygreen.blockchain.core.Hash256;
+import com.milkygreen.blockchain.core.TransactionInput;
+import com.milkygreen.blockchain.core.TransactionOutput;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 交易输入的签名hash(sighash)计算器
+ * 签名的内容是input以及它所花费的输出，按固定的二进制格式依次写入：
+ * 版本(1字节) | 签名算法(1字节) | input所属交易hash | 输出所在交易hash | 输出索引(4字节) | 金额(8字节) | 收款地址。
+ * 整数都是大端，hash和地址这种变长字段前面加4字节长度，null的长度写-1，保证不同的字段内容不会得到相同的字节序列。
+ * hash字段写入32字节原始数据。最后对整个内容做两次SHA-256，得到32字节的sighash，ECDSA和Schnorr签名的都是它。
+ * 写入用的缓冲区和摘要对象都会复用，实例不是线程安全的，每个线程需要使用自己的实例。
+ */
+public class SignatureHasher {
+
+    /**
+     * 编码格式版本，格式变化时修改，旧格式的签名就不会被误认为新格式的签名
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * sighash长度
+     */
+    public static final int HASH_LENGTH = 32;
+
+    private byte[] buffer = new byte[256];
+
+    private int position;
+
+    private final SHA256Digest digest = new SHA256Digest();
+
+    /**
+     * 计算input的sighash
+     *
+     * @return 32字节sighash，每次返回新的数组
+     */
+    public byte[] hash(TransactionInput input) {
+        position = 0;
+        TransactionOutput output = input.getUnspentOutput();
+        writeByte(VERSION);
+        writeByte(input.getSignatureType());
+        writeHash(input.getTransactionHashValue());
+        writeHash(output.getTransactionHashValue());
+        writeInt(output.getIndex());
+        writeLong(output.getAmount());
+        writeString(output.getAccount());
+
+        byte[] hash = new byte[HASH_LENGTH];
+        digest.update(buffer, 0, position);
+        digest.doFinal(hash, 0);
+        digest.update(hash, 0, HASH_LENGTH);
+        digest.doFinal(hash, 0);
+        return hash;
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    /**
+     * hash写入长度(4字节)和32字节原始数据，null只写入长度-1
+     */
+    private void writeHash(Hash256 hash) {
+        if (hash == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(Hash256.LENGTH);
+        ensureCapacity(Hash256.LENGTH);
+        hash.writeTo(buffer, position);
+        position += Hash256.LENGTH;
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void ensureCapacity(int length) {
+        if (position + length > buffer.length) {
+            byte[] newBuffer = new byte[Math.max(buffer.length * 2, position + length)];
+            System.arraycopy(buffer, 0, newBuffer, 0, position);
+            buffer = newBuffer;
+        }
+    }
+}
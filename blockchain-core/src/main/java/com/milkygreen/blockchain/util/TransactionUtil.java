@@ -1,5 +1,6 @@
 package com.milkygreen.blockchain.util;
 
+import com.milkygreen.blockchain.core.Hash256;
 import com.milkygreen.blockchain.core.Transaction;
 import com.milkygreen.blockchain.core.TransactionInput;
 
@@ -11,37 +12,111 @@ import java.util.List;
  */
 public class TransactionUtil {
 
+    /**
+     * 每个线程复用自己的sighash计算器
+     */
+    private static final ThreadLocal<SignatureHasher> SIGNATURE_HASHER = ThreadLocal.withInitial(SignatureHasher::new);
+
     /**
      * 计算交易的hash值
      * @param transaction 交易
      * @return 交易hash
      */
     public static String calculateHash(Transaction transaction){
+        return calculateHashValue(transaction).toHex();
+    }
+
+    /**
+     * 计算交易的hash值，不转换成十六进制字符串
+     */
+    public static Hash256 calculateHashValue(Transaction transaction){
         String msg = transaction.getPayee() + transaction.getAmount() + transaction.getTimestamp() + transaction.getNonce();
-        return ByteUtil.bytesToHexString(CryptoUtil.doubleDigest(ByteUtil.stringToUtf8Bytes(msg)));
+        return Hash256.of(CryptoUtil.doubleDigest(ByteUtil.stringToUtf8Bytes(msg)));
     }
 
     /**
-     * 给交易签名
+     * 给交易签名，签名算法由input的signatureType决定
      * @param privateKey 私钥
      * @param transactionInput 交易输入
      * @return 签名
      */
     public static String signature(String privateKey, TransactionInput transactionInput){
-        String data = transactionInput.getTransactionHash() + "-" + JsonUtil.toJson(transactionInput.getUnspentOutput());
-        return CryptoUtil.signature(privateKey,ByteUtil.stringToUtf8Bytes(data));
+        byte[] message = SIGNATURE_HASHER.get().hash(transactionInput);
+        if (transactionInput.getSignatureType() == TransactionInput.SIGNATURE_TYPE_SCHNORR) {
+            return CryptoUtil.schnorrSignature(privateKey, message);
+        }
+        return CryptoUtil.signature(privateKey, message);
     }
 
     /**
      * 验证交易的签名
+     * 验证通过的签名会记录到{@link SignatureCache}中，交易进入交易池时验证过的签名，区块入库时不会再算一遍
      * @param pubicKey 公钥
      * @param signature 签名
      * @param transactionInput 交易输入
      * @return 是否验证通过
      */
     public static boolean validateSignature(String pubicKey,String signature,TransactionInput transactionInput){
-        String data = transactionInput.getTransactionHash() + "-" + JsonUtil.toJson(transactionInput.getUnspentOutput());
-        return CryptoUtil.verifySignature(pubicKey,ByteUtil.stringToUtf8Bytes(data),ByteUtil.hexStringToBytes(signature));
+        if (pubicKey == null || signature == null) {
+            return false;
+        }
+        byte[] message = SIGNATURE_HASHER.get().hash(transactionInput);
+        byte[] publicKeyBytes = ByteUtil.stringToUtf8Bytes(pubicKey);
+        byte[] signatureBytes = ByteUtil.hexStringToBytes(signature);
+        if (SignatureCache.contains(message, publicKeyBytes, signatureBytes)) {
+            return true;
+        }
+        boolean valid;
+        if (transactionInput.getSignatureType() == TransactionInput.SIGNATURE_TYPE_SCHNORR) {
+            valid = CryptoUtil.verifySchnorrSignature(pubicKey, message, signatureBytes);
+        } else if (transactionInput.getSignatureType() == TransactionInput.SIGNATURE_TYPE_ECDSA) {
+            valid = CryptoUtil.verifySignature(pubicKey, message, signatureBytes);
+        } else {
+            valid = false;
+        }
+        if (!valid) {
+            return false;
+        }
+        SignatureCache.add(message, publicKeyBytes, signatureBytes);
+        return true;
+    }
+
+    /**
+     * 验证一批input的签名
+     * ECDSA签名逐个验证，Schnorr签名合在一起批量验证，已经在{@link SignatureCache}中的签名直接跳过。
+     * @param inputs 交易输入
+     * @return 是否全部验证通过
+     */
+    public static boolean validateSignatures(List<TransactionInput> inputs){
+        List<String> publicKeys = new ArrayList<>();
+        List<byte[]> messages = new ArrayList<>();
+        List<byte[]> signatures = new ArrayList<>();
+        for (TransactionInput input : inputs) {
+            if (input.getSignatureType() != TransactionInput.SIGNATURE_TYPE_SCHNORR) {
+                if (!validateSignature(input.getPublicKey(), input.getSignature(), input)) {
+                    return false;
+                }
+                continue;
+            }
+            if (input.getPublicKey() == null || input.getSignature() == null) {
+                return false;
+            }
+            byte[] message = SIGNATURE_HASHER.get().hash(input);
+            byte[] signatureBytes = ByteUtil.hexStringToBytes(input.getSignature());
+            if (SignatureCache.contains(message, ByteUtil.stringToUtf8Bytes(input.getPublicKey()), signatureBytes)) {
+                continue;
+            }
+            publicKeys.add(input.getPublicKey());
+            messages.add(message);
+            signatures.add(signatureBytes);
+        }
+        if (!CryptoUtil.verifySchnorrSignatures(publicKeys, messages, signatures)) {
+            return false;
+        }
+        for (int i = 0; i < publicKeys.size(); i++) {
+            SignatureCache.add(messages.get(i), ByteUtil.stringToUtf8Bytes(publicKeys.get(i)), signatures.get(i));
+        }
+        return true;
     }
 
     /**
@@ -50,9 +125,36 @@ public class TransactionUtil {
      * @return 默克尔树hash值
      */
     public static String genMerkleTree(List<Transaction> list){
-        List<byte[]> bytesList = new ArrayList<>();
-        list.forEach(transaction -> bytesList.add(ByteUtil.hexStringToBytes(transaction.getHash())));
-        byte[] bytes = CryptoUtil.calculateMerkleTreeRoot(bytesList);
-        return ByteUtil.bytesToHexString(bytes);
+        return genMerkleTreeValue(list).toHex();
+    }
+
+    /**
+     * 创建交易列表的默克尔树，不转换成十六进制字符串
+     */
+    public static Hash256 genMerkleTreeValue(List<Transaction> list){
+        return Hash256.of(buildMerkleTree(list).root());
+    }
+
+    /**
+     * 构建交易列表的默克尔树对象，可以在其上增量修改、生成包含证明
+     * @param list 交易列表
+     * @return 默克尔树
+     */
+    public static MerkleTree buildMerkleTree(List<Transaction> list){
+        List<byte[]> leaves = new ArrayList<>(list.size());
+        list.forEach(transaction -> leaves.add(transaction.getHashValue().toBytes()));
+        return MerkleTree.build(leaves);
+    }
+
+    /**
+     * 生成交易在交易列表中的默克尔包含证明
+     * @param list 交易列表，即区块中的交易
+     * @param transactionHash 交易hash
+     * @return 从叶子到根的兄弟节点，交易不在列表中时返回null
+     */
+    public static List<byte[]> genMerkleProof(List<Transaction> list, String transactionHash){
+        MerkleTree tree = buildMerkleTree(list);
+        int index = tree.indexOf(ByteUtil.hexStringToBytes(transactionHash));
+        return index < 0 ? null : tree.proof(index);
     }
 }
@@ -1,6 +1,8 @@
 package com.milkygreen.blockchain.wallet;
 
+import com.milkygreen.blockchain.core.Hash256;
 import com.milkygreen.blockchain.core.Miner;
+import com.milkygreen.blockchain.core.OutPoint;
 import com.milkygreen.blockchain.core.Transaction;
 import com.milkygreen.blockchain.core.TransactionInput;
 import com.milkygreen.blockchain.core.TransactionOutput;
@@ -23,11 +25,19 @@ public class Wallet {
      */
     public Map<String, Account> accountDB = new ConcurrentHashMap<>();
 
+    /**
+     * 付款时使用的签名算法，默认使用ECDSA
+     * 可以通过{@link #setSignatureType(int)}改用Schnorr，区块入库时Schnorr签名可以批量验证
+     */
+    private int signatureType = TransactionInput.SIGNATURE_TYPE_ECDSA;
+
     /**
      * 新增账户
      * @param account
      */
     public void addAccount(Account account){
+        // 先关注地址，之后连接的区块中给它的输出才会进入钱包的地址索引
+        DBUtil.UTXO.watch(account.getAddress());
         accountDB.put(account.getAddress(),account);
     }
 
@@ -39,13 +49,21 @@ public class Wallet {
         accountDB.remove(address);
     }
 
+    public int getSignatureType() {
+        return signatureType;
+    }
+
+    public void setSignatureType(int signatureType) {
+        this.signatureType = signatureType;
+    }
+
     /**
      * 给指定账户付款
      * @param amount 金额
      * @param payee 收款地址
      * 1、第一步从自己的钱包中查询是否有足够的「未花费输出」用来支付
      * 2、凑出的金额是否大于支付金额，多的话需要给自己找零
-     * 3、构建交易，放到未确认交易池中，等待被挖
+     * 3、构建交易，放到未确认交易池中，等待被挖。交易池会先校验交易，校验不通过时抛出异常
      */
     public void pay(long amount,String payee){
         long sum = 0;
@@ -54,14 +72,15 @@ public class Wallet {
         Collection<Account> accounts = accountDB.values();
         out : for (Account account : accounts) {
             // 从自己的账户中，找未花费输出，看看是否能凑出要支付的金额
-            Set<TransactionOutput> transactionOutputs = DBUtil.UTXO.get(account.getAddress());
-            if(transactionOutputs != null){
-                for (TransactionOutput output : transactionOutputs) {
-                    sum += output.getAmount();
-                    payeeOutputs.add(output);
-                    if(sum >= amount){
-                        break out;
-                    }
+            for (TransactionOutput output : DBUtil.UTXO.getOutputs(account.getAddress())) {
+                // 已经被交易池中的交易花掉的输出不能再用，否则会被当作双花拒绝
+                if (DBUtil.unConfirmTransactionPool.isSpent(OutPoint.of(output))) {
+                    continue;
+                }
+                sum += output.getAmount();
+                payeeOutputs.add(output);
+                if(sum >= amount){
+                    break out;
                 }
             }
         }
@@ -74,21 +93,22 @@ public class Wallet {
             transaction.setPayee(payee);
             transaction.setAmount(amount);
             transaction.setNonce(ByteUtil.bytesToUint64(ByteUtil.random32Bytes()));
-            String transactionHash = TransactionUtil.calculateHash(transaction);
-            transaction.setHash(transactionHash);
+            Hash256 transactionHash = TransactionUtil.calculateHashValue(transaction);
+            transaction.setHashValue(transactionHash);
             // 构建交易的input列表
             List<TransactionInput> inputs = new ArrayList<>();
             for (TransactionOutput payeeOutput : payeeOutputs) {
                 // input是由一个未花费的output得来的，可以认为是对output的一个包装
                 TransactionInput transactionInput = new TransactionInput();
                 transactionInput.setUnspentOutput(payeeOutput);
-                transactionInput.setTransactionHash(transactionHash);
+                transactionInput.setTransactionHashValue(transactionHash);
                 // 未花费输出(output)的地址，就是现在这个付款人的地址。
                 // 根据地址找到私钥，给input签名，这样别的节点拿到这个交易后，可以用公钥对签名进行验证
                 // 证明这个output确实是付款人自己发起的，因为只有付款人才有正确的私钥
                 String account = payeeOutput.getAccount();
                 Account accountObj = accountDB.get(account);
                 transactionInput.setPublicKey(accountObj.getPublicKey());
+                transactionInput.setSignatureType(signatureType);
                 String signature = TransactionUtil.signature(accountObj.getPrivateKey(),transactionInput);
                 transactionInput.setSignature(signature);
                 inputs.add(transactionInput);
@@ -102,7 +122,7 @@ public class Wallet {
             transactionOutput.setAccount(payee);
             transactionOutput.setAmount(amount);
             transactionOutput.setIndex(0);
-            transactionOutput.setTransactionHash(transactionHash);
+            transactionOutput.setTransactionHashValue(transactionHash);
             outputs.add(transactionOutput);
             if(sum > amount){
                 // 需要给自己找零。
@@ -110,17 +130,19 @@ public class Wallet {
                 // 如果自己有一个10块的output，但是只想给别人支付1块钱，就需要生成两个新的output，一个1块的给对方，一个9块的给自己
                 // 这里新生成了一个账户用来接收找零。创建账户是没有成本的，这样可以更好的保证匿名性。
                 Account changeAccount = CryptoUtil.randomAccount();
-                accountDB.put(changeAccount.getAddress(),changeAccount);
+                addAccount(changeAccount);
                 TransactionOutput changeOutput = new TransactionOutput();
                 changeOutput.setAccount(changeAccount.getAddress());
                 changeOutput.setAmount(sum - amount);
                 changeOutput.setIndex(1);
-                changeOutput.setTransactionHash(transactionHash);
+                changeOutput.setTransactionHashValue(transactionHash);
                 outputs.add(changeOutput);
             }
             transaction.setOutputs(outputs);
             transaction.setType(Transaction.TRANSACTION_TYPE_NORMAL);
-            DBUtil.unConfirmTransactionPool.put(transaction.getHash(),transaction);
+            if (!DBUtil.unConfirmTransactionPool.add(transaction)) {
+                throw new RuntimeException("交易未通过交易池的校验");
+            }
         }
     }
 
@@ -129,18 +151,10 @@ public class Wallet {
      * @return
      */
     public long getBalance(){
-        int balance = 0;
+        long balance = 0;
         Collection<Account> accounts = accountDB.values();
         for (Account account : accounts) {
-            synchronized (DBUtil.UTXO){
-                Set<TransactionOutput> transactionOutputs = DBUtil.UTXO.get(account.getAddress());
-                if(transactionOutputs != null){
-                    Iterator<TransactionOutput> iterator = transactionOutputs.iterator();
-                    while (iterator.hasNext()){
-                        balance += iterator.next().getAmount();
-                    }
-                }
-            }
+            balance += DBUtil.UTXO.getBalance(account.getAddress());
         }
         return balance;
     }
@@ -159,10 +173,10 @@ public class Wallet {
         transaction.setAmount(Miner.incentives);
         transaction.setPayee(account.getAddress());
         transaction.setNonce(ByteUtil.bytesToUint64(ByteUtil.random32Bytes()));
-        String hash = TransactionUtil.calculateHash(transaction);
-        transaction.setHash(hash);
+        Hash256 hash = TransactionUtil.calculateHashValue(transaction);
+        transaction.setHashValue(hash);
         TransactionOutput transactionOutput = new TransactionOutput();
-        transactionOutput.setTransactionHash(hash);
+        transactionOutput.setTransactionHashValue(hash);
         transactionOutput.setIndex(0);
         transactionOutput.setAmount(Miner.incentives);
         transactionOutput.setAccount(account.getAddress());